@@ -1,16 +1,105 @@
 // HOSPITAL MANAGEMENT SYSTEM - ALL-IN-ONE JAVA FILE
 // This file combines the main menu, patient registration, doctor selection, and appointment booking in a single Java application.
-// Make sure you have MySQL running and the JDBC driver in your classpath.
+// Make sure you have MySQL running and the JDBC driver in your classpath. Requires JDK 17 or later.
+// Run with --server [port] to start the headless HTTP API instead of the Swing menu, or with --export [file]
+// to write the patient, doctor and appointment tables to a columnar file for the notebooks (hospital_columnar.py).
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import java.awt.*;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableModel;
 
 public class HospitalApp extends JFrame {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, SQLException {
         // Setup database (run only once, or check if tables exist)
         setupDatabase();
+        if (REGISTRATIONS != null) {
+            REGISTRATIONS.start();
+        }
+        if (args.length > 0 && args[0].equals("--export")) {
+            Path file = Path.of(args.length > 1 ? args[1] : "hospital.hcol");
+            long rows = new ColumnarExporter(HospitalApp::readConnection, SHARDS).export(file,
+                    List.of("patient", "doctor", "appointment", AppointmentRepository.ARCHIVE));
+            System.out.println("Exported " + rows + " rows to " + file.toAbsolutePath());
+            SHARDS.close();
+            return;
+        }
+        ARCHIVER.start();
+        if (args.length > 0 && args[0].equals("--server")) {
+            HttpApi api = new HttpApi(SERVICE, args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+            api.start();
+            System.out.println("Hospital API listening on port " + api.port());
+            return;
+        }
         // Launch main menu
         SwingUtilities.invokeLater(HospitalApp::new);
     }
@@ -19,7 +108,7 @@ public class HospitalApp extends JFrame {
         setTitle("Hospital Management System");
         setSize(400, 400);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
-        setLayout(new GridLayout(6, 1));
+        setLayout(new GridLayout(7, 1));
 
         JButton registerBtn = new JButton("Register Patient");
         registerBtn.addActionListener(e -> new PatientRegistration());
@@ -33,6 +122,8 @@ public class HospitalApp extends JFrame {
         viewDoctorsBtn.addActionListener(e -> new ViewDoctors());
         JButton viewAppointmentsBtn = new JButton("View Appointments");
         viewAppointmentsBtn.addActionListener(e -> new ViewAppointments());
+        JButton dashboardBtn = new JButton("Appointment Dashboard");
+        dashboardBtn.addActionListener(e -> new AppointmentDashboard());
 
         add(registerBtn);
         add(registerDoctorBtn);
@@ -40,21 +131,29 @@ public class HospitalApp extends JFrame {
         add(viewPatientsBtn);
         add(viewDoctorsBtn);
         add(viewAppointmentsBtn);
+        add(dashboardBtn);
         setVisible(true);
     }
 
     // --- Database Setup ---
-    private static void setupDatabase() {
-        String url = "jdbc:mysql://localhost:3306/";
-        String dbName = "hospital_db";
-        String user = "root";
-        String password = "";
+    // Schema changes are versioned migrations; once the schema is current, startup costs a single query.
+    static void setupDatabase() {
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            Connection conn = DriverManager.getConnection(url, user, password);
-            Statement stmt = conn.createStatement();
-            stmt.executeUpdate("CREATE DATABASE IF NOT EXISTS " + dbName);
-            stmt.executeUpdate("USE " + dbName);
+            try {
+                Class.forName("com.mysql.cj.jdbc.Driver");
+            } catch (ClassNotFoundException e) {
+                // Another JDBC 4 driver on the classpath (e.g. an embedded database for load runs) registers itself.
+            }
+            SHARDS.fanOut(shard -> Metrics.record("schema.migrate", new SchemaMigrator(HospitalApp::getConnection, MIGRATIONS)::migrate));
+            SHARDS.checkIdRanges();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Append new migrations at the end; never edit one that has shipped.
+    static final List<Migration> MIGRATIONS = List.of(
+        new Migration(1, "Create doctor, patient and appointment tables", stmt -> {
             stmt.executeUpdate("""
                 CREATE TABLE IF NOT EXISTS doctor (
                     doctor_id INT AUTO_INCREMENT PRIMARY KEY,
@@ -106,22 +205,158 @@ public class HospitalApp extends JFrame {
                 """);
             }
             rs.close();
-            stmt.close();
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
+        }),
+        new Migration(2, "Index the dentist roster and appointment lookups", stmt -> {
+            SchemaMigrator.createIndex(stmt, "doctor", "idx_doctor_specialization_availability", "specialization, availability");
+            SchemaMigrator.createIndex(stmt, "appointment", "idx_appointment_doctor_date", "doctor_id, appointment_date");
+            SchemaMigrator.createIndex(stmt, "appointment", "idx_appointment_date", "appointment_date");
+        }),
+        new Migration(3, "Add per-doctor slot length and unique appointment slots", stmt -> {
+            SchemaMigrator.addColumn(stmt, "doctor", "slot_minutes", "INT NOT NULL DEFAULT 30");
+            SchemaMigrator.addColumn(stmt, "appointment", "slot_start", "DATETIME NULL");
+            // Rows booked before slots existed keep a NULL slot_start, which the unique index ignores.
+            SchemaMigrator.createIndex(stmt, "appointment", "uq_appointment_doctor_slot", "doctor_id, slot_start", true);
+        }),
+        new Migration(4, "Track registrations applied from write-behind journals", stmt -> stmt.executeUpdate("""
+            CREATE TABLE IF NOT EXISTS registration_journal (
+                journal_id CHAR(36) PRIMARY KEY,
+                applied_seq BIGINT NOT NULL
+            )
+        """)),
+        new Migration(5, "Version appointment rows for incremental refresh", stmt -> {
+            SchemaMigrator.addColumn(stmt, "appointment", "updated_at",
+                    "TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3)");
+            SchemaMigrator.createIndex(stmt, "appointment", "idx_appointment_updated_at", "updated_at");
+        }),
+        new Migration(6, "Add appointment rollup tables for the dashboard", stmt -> {
+            stmt.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS appointment_rollup (
+                    doctor_id INT NOT NULL,
+                    day DATE NOT NULL,
+                    status VARCHAR(20) NOT NULL,
+                    appointments INT NOT NULL,
+                    PRIMARY KEY (doctor_id, day, status)
+                )
+            """);
+            stmt.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS appointment_mix_rollup (
+                    age_band INT NOT NULL,
+                    gender VARCHAR(10) NOT NULL,
+                    status VARCHAR(20) NOT NULL,
+                    appointments INT NOT NULL,
+                    PRIMARY KEY (age_band, gender, status)
+                )
+            """);
+            // One-time backfill; from here on bookings and status changes keep both tables current.
+            stmt.executeUpdate("DELETE FROM appointment_rollup");
+            stmt.executeUpdate("""
+                INSERT INTO appointment_rollup (doctor_id, day, status, appointments)
+                SELECT doctor_id, appointment_date, COALESCE(status, 'Scheduled'), COUNT(*) FROM appointment
+                WHERE doctor_id IS NOT NULL AND appointment_date IS NOT NULL
+                GROUP BY doctor_id, appointment_date, COALESCE(status, 'Scheduled')
+            """);
+            stmt.executeUpdate("DELETE FROM appointment_mix_rollup");
+            stmt.executeUpdate("""
+                INSERT INTO appointment_mix_rollup (age_band, gender, status, appointments)
+                SELECT COALESCE(FLOOR(p.age / 10) * 10, -1), COALESCE(p.gender, 'Unknown'), COALESCE(a.status, 'Scheduled'), COUNT(*)
+                FROM appointment a LEFT JOIN patient p ON p.patient_id = a.patient_id
+                GROUP BY 1, 2, 3
+            """);
+        }),
+        new Migration(7, "Add the replication heartbeat used by read routing", stmt -> stmt.executeUpdate("""
+            CREATE TABLE IF NOT EXISTS replication_heartbeat (
+                source_id CHAR(36) PRIMARY KEY,
+                beat_nanos BIGINT NOT NULL
+            )
+        """)),
+        // The JavaFX build used to keep its own hospital.patients table; both builds now share this schema. Every
+        // clinic database runs this step, but those patients belong to one clinic: hospital.legacy.clinic, by default
+        // the home clinic of the process that migrates.
+        new Migration(8, "Copy patients registered by the old JavaFX build into patient", stmt -> {
+            int legacyClinic = Integer.getInteger("hospital.legacy.clinic", HospitalApp.SHARDS.home().clinic());
+            if (HospitalApp.SHARDS.current().clinic() != legacyClinic) {
+                return;
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM information_schema.tables"
+                    + " WHERE table_schema = 'hospital' AND table_name = 'patients'")) {
+                rs.next();
+                if (rs.getInt(1) == 0) {
+                    return;
+                }
+            }
+            stmt.executeUpdate("""
+                INSERT INTO patient (name, age, gender, contact)
+                SELECT l.name, l.age, l.gender, l.contact FROM (
+                    SELECT CONCAT_WS(' ', NULLIF(TRIM(first_name), ''), NULLIF(TRIM(last_name), '')) AS name,
+                           age, gender, phone AS contact
+                    FROM hospital.patients
+                ) l
+                WHERE NOT EXISTS (SELECT 1 FROM patient p WHERE p.name = l.name AND p.contact = l.contact)
+            """);
+        }),
+        // Same columns and indexes as appointment (the foreign keys are not copied); a migration that changes one
+        // must change the other.
+        new Migration(9, "Add the appointment archive", stmt ->
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS appointment_archive LIKE appointment")),
+        // Runs once per clinic database (see ShardMap). A new clinic's database only holds migration 1's sample
+        // doctors, which nothing references yet, so they move into the range too.
+        new Migration(10, "Start each clinic's ids in its own range", stmt -> {
+            int base = ShardMap.idBase(HospitalApp.SHARDS.current().clinic());
+            if (base == 0) {
+                return;
+            }
+            stmt.executeUpdate("UPDATE doctor SET doctor_id = doctor_id + " + base + " WHERE doctor_id <= " + base);
+            for (String table : List.of("doctor", "patient", "appointment")) {
+                stmt.executeUpdate("ALTER TABLE " + table + " AUTO_INCREMENT = " + (base + 1));
+            }
+        }),
+        new Migration(11, "Version doctor rows for availability events", stmt -> {
+            SchemaMigrator.addColumn(stmt, "doctor", "updated_at",
+                    "TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3)");
+            SchemaMigrator.createIndex(stmt, "doctor", "idx_doctor_updated_at", "updated_at");
+        }),
+        // Only the archive gets this column; archiveBefore names the columns it copies, so the tables still line up.
+        new Migration(12, "Record when appointments were archived", stmt -> {
+            SchemaMigrator.addColumn(stmt, "appointment_archive", "archived_at",
+                    "TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3)");
+            SchemaMigrator.createIndex(stmt, "appointment_archive", "idx_appointment_archive_archived_at", "archived_at");
+        }),
+        // The patient mix rollup counts an appointment under the patient's age band and gender as of booking; a
+        // later status change must move it within that cohort, not within whatever the patient record says now.
+        new Migration(13, "Store the patient cohort on each appointment", stmt -> {
+            for (String table : List.of("appointment", "appointment_archive")) {
+                SchemaMigrator.addColumn(stmt, table, "mix_age_band", "INT NULL");
+                SchemaMigrator.addColumn(stmt, table, "mix_gender", "VARCHAR(10) NULL");
+                stmt.executeUpdate("UPDATE " + table + " a LEFT JOIN patient p ON p.patient_id = a.patient_id"
+                        + " SET a.mix_age_band = COALESCE(FLOOR(p.age / 10) * 10, -1), a.mix_gender = COALESCE(p.gender, 'Unknown')"
+                        + " WHERE a.mix_age_band IS NULL");
+            }
+            // Rebuilt from the stored cohorts so the rollup and the rows it counts agree from here on.
+            stmt.executeUpdate("DELETE FROM appointment_mix_rollup");
+            stmt.executeUpdate("""
+                INSERT INTO appointment_mix_rollup (age_band, gender, status, appointments)
+                SELECT mix_age_band, mix_gender, COALESCE(status, 'Scheduled'), COUNT(*)
+                FROM (SELECT mix_age_band, mix_gender, status FROM appointment
+                      UNION ALL SELECT mix_age_band, mix_gender, status FROM appointment_archive) booked
+                GROUP BY 1, 2, 3
+            """);
+        })
+    );
 
     // --- Patient Registration ---
     static class PatientRegistration extends JFrame {
-        JTextField nameField, ageField, contactField;
-        JComboBox<String> genderCombo, doctorList;
+        JTextField nameField, ageField, contactField, visitField, dentistField;
+        JComboBox<String> genderCombo;
+        JButton submit;
+        private int lookups;
         public PatientRegistration() {
             setTitle("Patient Registration");
-            setSize(400, 300);
-            setLayout(new GridLayout(6, 2));
+            setSize(400, 380);
+            setLayout(new GridLayout(8, 2));
             setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+            add(new JLabel("Find Patient by Phone:"));
+            add(new PatientLookup(this, 4, SERVICE::findPatientsByPhone,
+                    id -> JOptionPane.showMessageDialog(this, "Patient " + id + " is already registered.")));
             add(new JLabel("Name:"));
             nameField = new JTextField();
             add(nameField);
@@ -134,50 +369,93 @@ public class HospitalApp extends JFrame {
             add(new JLabel("Contact (09xxxxxxxx):"));
             contactField = new JTextField();
             add(contactField);
-            add(new JLabel("Choose Dentist:"));
-            doctorList = new JComboBox<>();
-            loadAvailableDentists();
-            add(doctorList);
-            JButton submit = new JButton("Register Patient");
+            // The patient is registered with whichever dentist has the fewest bookings that day, shown here once the
+            // visit date is entered (Enter or leaving the field) and picked again when registering.
+            add(new JLabel("Visit Date (YYYY-MM-DD):"));
+            visitField = new JTextField(LocalDate.now().plusDays(1).toString());
+            visitField.addActionListener(e -> showAssignedDentist());
+            visitField.addFocusListener(new FocusAdapter() {
+                @Override
+                public void focusLost(FocusEvent e) {
+                    showAssignedDentist();
+                }
+            });
+            add(visitField);
+            add(new JLabel("Assigned Dentist:"));
+            dentistField = new JTextField();
+            dentistField.setEditable(false);
+            add(dentistField);
+            submit = new JButton("Register Patient");
             submit.addActionListener(e -> addPatient());
             add(submit);
+            showAssignedDentist();
             setVisible(true);
         }
-        private void loadAvailableDentists() {
-            try (Connection conn = getConnection()) {
-                String query = "SELECT doctor_id, name FROM doctor WHERE specialization = 'Dentist' AND availability = TRUE";
-                ResultSet rs = conn.createStatement().executeQuery(query);
-                while (rs.next()) {
-                    int id = rs.getInt("doctor_id");
-                    String name = rs.getString("name");
-                    doctorList.addItem(id + ": " + name);
-                }
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "Failed to load dentists: " + e.getMessage());
+        // Only the answer for the latest visit date is shown; addPatient reports a date that does not parse.
+        private void showAssignedDentist() {
+            int current = ++lookups;
+            dentistField.setText("");
+            LocalDate visit;
+            try {
+                visit = LocalDate.parse(visitField.getText().trim());
+                HospitalService.validateAppointmentDate(visit);
+            } catch (java.time.format.DateTimeParseException | IllegalArgumentException e) {
+                return;
             }
+            DataAccess.onSwing(this, () -> SERVICE.leastLoadedDoctor(DENTIST, visit), dentist -> {
+                if (current == lookups) {
+                    dentistField.setText(dentist.id() + ": " + dentist.name());
+                }
+            }, e -> {
+                if (current == lookups) {
+                    JOptionPane.showMessageDialog(this, "Failed to assign a dentist: " + e.getMessage());
+                }
+            });
         }
         private void addPatient() {
             String name = nameField.getText();
             int age = Integer.parseInt(ageField.getText());
             String gender = (String) genderCombo.getSelectedItem();
             String contact = contactField.getText();
-            String selectedDoctor = (String) doctorList.getSelectedItem();
-            int doctorId = Integer.parseInt(selectedDoctor.split(":")[0]);
-            try (Connection conn = getConnection()) {
-                String sql = "INSERT INTO patient (name, age, gender, contact, selectedDoctor, doctor_id) VALUES (?, ?, ?, ?, ?, ?)";
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                stmt.setString(1, name);
-                stmt.setInt(2, age);
-                stmt.setString(3, gender);
-                stmt.setString(4, contact);
-                stmt.setString(5, selectedDoctor);
-                stmt.setInt(6, doctorId);
-                stmt.executeUpdate();
-                JOptionPane.showMessageDialog(this, "Patient registered successfully!");
+            LocalDate visit;
+            try {
+                visit = LocalDate.parse(visitField.getText().trim());
+                HospitalService.validateAppointmentDate(visit);
+            } catch (java.time.format.DateTimeParseException e) {
+                JOptionPane.showMessageDialog(this, "Invalid visit date. Use YYYY-MM-DD.");
+                return;
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage());
+                return;
+            }
+            submit.setEnabled(false);
+            DataAccess.onSwing(this, () -> SERVICE.patientsWithContact(contact), existing -> {
+                if (existing.length > 0 && JOptionPane.showConfirmDialog(this,
+                        "Contact " + contact + " is already registered to patient " + Arrays.toString(existing)
+                                + ". Register a new patient anyway?", "Duplicate Contact", JOptionPane.YES_NO_OPTION)
+                        != JOptionPane.YES_OPTION) {
+                    submit.setEnabled(true);
+                    return;
+                }
+                register(name, age, gender, contact, visit);
+            }, e -> register(name, age, gender, contact, visit));
+        }
+        private void register(String name, int age, String gender, String contact, LocalDate visit) {
+            DataAccess.onSwing(this, () -> {
+                AvailabilityIndex.Doctor dentist = SERVICE.leastLoadedDoctor(DENTIST, visit);
+                if (REGISTRATIONS != null) {
+                    REGISTRATIONS.submit(name, age, gender, contact, dentist.id());
+                } else {
+                    SERVICE.registerPatient(name, age, gender, contact, dentist.id());
+                }
+                return dentist;
+            }, dentist -> {
+                JOptionPane.showMessageDialog(this, "Patient registered successfully with " + dentist.id() + ": " + dentist.name() + "!");
                 dispose();
-            } catch (Exception e) {
+            }, e -> {
+                submit.setEnabled(true);
                 JOptionPane.showMessageDialog(this, "Failed to register patient: " + e.getMessage());
-            }
+            });
         }
     }
 
@@ -185,6 +463,7 @@ public class HospitalApp extends JFrame {
     static class DoctorRegistration extends JFrame {
         JTextField nameField, specializationField;
         JCheckBox availableBox;
+        JButton submit;
         public DoctorRegistration() {
             setTitle("Register Doctor");
             setSize(350, 200);
@@ -200,7 +479,7 @@ public class HospitalApp extends JFrame {
             availableBox = new JCheckBox();
             availableBox.setSelected(true);
             add(availableBox);
-            JButton submit = new JButton("Register Doctor");
+            submit = new JButton("Register Doctor");
             submit.addActionListener(e -> addDoctor());
             add(submit);
             setVisible(true);
@@ -209,27 +488,25 @@ public class HospitalApp extends JFrame {
             String name = nameField.getText();
             String specialization = specializationField.getText();
             boolean available = availableBox.isSelected();
-            try (Connection conn = getConnection()) {
-                String sql = "INSERT INTO doctor (name, specialization, availability) VALUES (?, ?, ?)";
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                stmt.setString(1, name);
-                stmt.setString(2, specialization);
-                stmt.setBoolean(3, available);
-                stmt.executeUpdate();
+            submit.setEnabled(false);
+            DataAccess.onSwing(this, () -> SERVICE.registerDoctor(name, specialization, available), doctorId -> {
                 JOptionPane.showMessageDialog(this, "Doctor registered successfully!");
                 dispose();
-            } catch (Exception e) {
+            }, e -> {
+                submit.setEnabled(true);
                 JOptionPane.showMessageDialog(this, "Failed to register doctor: " + e.getMessage());
-            }
+            });
         }
     }
 
     // --- Doctor Selection and Appointment Booking ---
     static class DoctorSelection extends JFrame {
+        private static final int SUGGESTIONS = 5;
         JComboBox<String> doctorList;
+        DefaultListModel<AvailabilityIndex.FreeSlot> suggestions = new DefaultListModel<>();
         public DoctorSelection() {
             setTitle("Available Dentists");
-            setSize(400, 200);
+            setSize(450, 330);
             setLayout(new FlowLayout());
             setDefaultCloseOperation(DISPOSE_ON_CLOSE);
             doctorList = new JComboBox<>();
@@ -246,40 +523,95 @@ public class HospitalApp extends JFrame {
                 }
             });
             add(nextBtn);
+            JButton leastLoadedBtn = new JButton("Least-Loaded Dentist");
+            leastLoadedBtn.addActionListener(e -> {
+                new AppointmentBooking();
+                dispose();
+            });
+            add(leastLoadedBtn);
+            add(new JLabel("Or pick one of the earliest free slots (double-click):"));
+            JList<AvailabilityIndex.FreeSlot> suggestionList = new JList<>(suggestions);
+            suggestionList.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    AvailabilityIndex.FreeSlot slot = suggestionList.getSelectedValue();
+                    if (e.getClickCount() == 2 && slot != null) {
+                        new AppointmentBooking(slot.doctorId(), slot.start());
+                        dispose();
+                    }
+                }
+            });
+            JScrollPane suggestionPane = new JScrollPane(suggestionList);
+            suggestionPane.setPreferredSize(new Dimension(400, 110));
+            add(suggestionPane);
+            loadSuggestions();
             setVisible(true);
         }
+        private void loadSuggestions() {
+            LocalDateTime from = LocalDate.now().plusDays(1).atStartOfDay();
+            DataAccess.onSwing(this, () -> SERVICE.firstFreeSlots(DENTIST, from, SUGGESTIONS),
+                    slots -> slots.forEach(suggestions::addElement),
+                    e -> JOptionPane.showMessageDialog(this, "Failed to load free slots: " + e.getMessage()));
+        }
         private void loadAvailableDentists() {
-            try (Connection conn = getConnection()) {
-                String query = "SELECT doctor_id, name FROM doctor WHERE specialization = 'Dentist' AND availability = TRUE";
-                ResultSet rs = conn.createStatement().executeQuery(query);
-                while (rs.next()) {
-                    int id = rs.getInt("doctor_id");
-                    String name = rs.getString("name");
-                    doctorList.addItem(id + ": " + name);
-                }
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "Failed to load dentists: " + e.getMessage());
+            List<String> cached = SERVICE.cachedDoctors(DENTIST);
+            if (cached != null) {
+                cached.forEach(doctorList::addItem);
+                followAvailableDentists();
+                return;
             }
+            doctorList.setEnabled(false);
+            DataAccess.onSwing(this, () -> SERVICE.availableDoctors(DENTIST), dentists -> {
+                dentists.forEach(doctorList::addItem);
+                doctorList.setEnabled(true);
+                followAvailableDentists();
+            }, e -> JOptionPane.showMessageDialog(this, "Failed to load dentists: " + e.getMessage()));
+        }
+        // Subscribed only once the roster is in the combo, so an event can never be applied before it.
+        private void followAvailableDentists() {
+            DefaultComboBoxModel<String> model = (DefaultComboBoxModel<String>) doctorList.getModel();
+            AVAILABILITY_EVENTS.whileOpen(this, DENTIST, rows -> AvailabilityBus.applyToRoster(rows,
+                    item -> model.getIndexOf(item) >= 0, model::addElement, model::removeElement));
         }
     }
 
     // --- Appointment Booking ---
     static class AppointmentBooking extends JFrame {
-        JTextField patientIdField, dateField;
+        // doctorId of a booking that goes to the dentist with the fewest appointments that day.
+        private static final int LEAST_LOADED = 0;
+        JTextField patientIdField, dateField, timeField;
+        JButton bookBtn;
         int doctorId;
+        public AppointmentBooking() {
+            this(LEAST_LOADED);
+            setTitle("Book Appointment (least-loaded dentist)");
+            timeField.setEnabled(false);
+        }
+        public AppointmentBooking(int doctorId, LocalDateTime slot) {
+            this(doctorId);
+            dateField.setText(slot.toLocalDate().toString());
+            timeField.setText(slot.toLocalTime().toString());
+        }
         public AppointmentBooking(int doctorId) {
             this.doctorId = doctorId;
             setTitle("Book Appointment");
-            setSize(400, 200);
-            setLayout(new GridLayout(3, 2));
+            setSize(400, 310);
+            setLayout(new GridLayout(6, 2));
             setDefaultCloseOperation(DISPOSE_ON_CLOSE);
-            add(new JLabel("Patient ID:"));
             patientIdField = new JTextField();
+            add(new JLabel("Find Patient by Name:"));
+            add(new PatientLookup(this, 2, SERVICE::findPatientsByName, id -> patientIdField.setText(String.valueOf(id))));
+            add(new JLabel("Find Patient by Phone:"));
+            add(new PatientLookup(this, 4, SERVICE::findPatientsByPhone, id -> patientIdField.setText(String.valueOf(id))));
+            add(new JLabel("Patient ID:"));
             add(patientIdField);
             add(new JLabel("Appointment Date (YYYY-MM-DD):"));
             dateField = new JTextField();
             add(dateField);
-            JButton bookBtn = new JButton("Book Appointment");
+            add(new JLabel("Time (HH:MM, blank = first free):"));
+            timeField = new JTextField();
+            add(timeField);
+            bookBtn = new JButton("Book Appointment");
             bookBtn.addActionListener(e -> bookAppointment());
             add(bookBtn);
             setVisible(true);
@@ -289,26 +621,34 @@ public class HospitalApp extends JFrame {
                 int patientId = Integer.parseInt(patientIdField.getText());
                 String date = dateField.getText();
                 java.time.LocalDate enteredDate = java.time.LocalDate.parse(date);
-                java.time.LocalDate today = java.time.LocalDate.now();
-                if (enteredDate.getYear() < today.getYear()) {
-                    JOptionPane.showMessageDialog(this, "Appointment year cannot be in the past.");
-                    return;
-                } else if (enteredDate.getYear() == today.getYear() && !enteredDate.isAfter(today)) {
-                    JOptionPane.showMessageDialog(this, "Appointment date must be after today in the current year.");
+                HospitalService.validateAppointmentDate(enteredDate);
+                String time = timeField.getText().trim();
+                LocalTime slotTime = time.isEmpty() ? null : LocalTime.parse(time);
+                bookBtn.setEnabled(false);
+                if (doctorId == LEAST_LOADED) {
+                    DataAccess.onSwing(this, () -> SERVICE.bookLeastLoaded(patientId, DENTIST, enteredDate), booked -> {
+                        JOptionPane.showMessageDialog(this, "Appointment booked with " + booked.doctorId() + ": " + booked.doctorName() + " for "
+                                + booked.slot().toLocalDate() + " at " + booked.slot().toLocalTime() + "!");
+                        dispose();
+                    }, e -> {
+                        bookBtn.setEnabled(true);
+                        JOptionPane.showMessageDialog(this, "Failed to book appointment: " + e.getMessage());
+                    });
                     return;
                 }
-                try (Connection conn = getConnection()) {
-                    String query = "INSERT INTO appointment (patient_id, doctor_id, appointment_date, status) VALUES (?, ?, ?, 'Scheduled')";
-                    PreparedStatement stmt = conn.prepareStatement(query);
-                    stmt.setInt(1, patientId);
-                    stmt.setInt(2, doctorId);
-                    stmt.setString(3, date);
-                    stmt.executeUpdate();
-                    JOptionPane.showMessageDialog(this, "Appointment booked successfully!");
+                DataAccess.onSwing(this, () -> SERVICE.bookAppointment(patientId, doctorId, enteredDate, slotTime), slot -> {
+                    JOptionPane.showMessageDialog(this, "Appointment booked successfully for " + slot.toLocalDate() + " at " + slot.toLocalTime() + "!");
                     dispose();
-                }
+                }, e -> {
+                    bookBtn.setEnabled(true);
+                    JOptionPane.showMessageDialog(this, "Failed to book appointment: " + e.getMessage());
+                });
             } catch (java.time.format.DateTimeParseException e) {
-                JOptionPane.showMessageDialog(this, "Invalid date format. Use YYYY-MM-DD.");
+                JOptionPane.showMessageDialog(this, "Invalid date or time format. Use YYYY-MM-DD and HH:MM.");
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Failed to book appointment: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage());
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(this, "Failed to book appointment: " + e.getMessage());
             }
@@ -318,28 +658,26 @@ public class HospitalApp extends JFrame {
     // --- View Registered Patients ---
     static class ViewPatients extends JFrame {
         public ViewPatients() {
-            setTitle("Registered Patients");
+            setTitle("Registered Patients (loading...)");
             setSize(600, 300);
             setDefaultCloseOperation(DISPOSE_ON_CLOSE);
             String[] columns = {"ID", "Name", "Age", "Gender", "Contact", "Selected Doctor"};
-            DefaultTableModel model = new DefaultTableModel(columns, 0);
+            PagedTableModel model = new PagedTableModel(this, HospitalApp::readConnection, SHARDS, "patient", "patient_id",
+                    PatientRepository.COLUMNS, columns,
+                    rs -> {
+                        PatientRepository.Row patient = PatientRepository.Row.map(rs);
+                        return new Object[]{
+                            patient.patientId(),
+                            patient.name(),
+                            patient.age(),
+                            patient.gender(),
+                            patient.contact(),
+                            patient.selectedDoctor()
+                        };
+                    },
+                    e -> JOptionPane.showMessageDialog(this, "Failed to load patients: " + e.getMessage()));
             JTable table = new JTable(model);
-            try (Connection conn = getConnection()) {
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT patient_id, name, age, gender, contact, selectedDoctor FROM patient");
-                while (rs.next()) {
-                    model.addRow(new Object[]{
-                        rs.getInt("patient_id"),
-                        rs.getString("name"),
-                        rs.getInt("age"),
-                        rs.getString("gender"),
-                        rs.getString("contact"),
-                        rs.getString("selectedDoctor")
-                    });
-                }
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "Failed to load patients: " + e.getMessage());
-            }
+            model.load(() -> setTitle("Registered Patients"));
             add(new JScrollPane(table));
             setVisible(true);
         }
@@ -348,65 +686,5184 @@ public class HospitalApp extends JFrame {
     // --- View Registered Doctors ---
     static class ViewDoctors extends JFrame {
         public ViewDoctors() {
-            setTitle("Registered Doctors");
+            setTitle("Registered Doctors (loading...)");
             setSize(500, 300);
             setDefaultCloseOperation(DISPOSE_ON_CLOSE);
             String[] columns = {"ID", "Name", "Specialization", "Available"};
             DefaultTableModel model = new DefaultTableModel(columns, 0);
             JTable table = new JTable(model);
-            try (Connection conn = getConnection()) {
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT doctor_id, name, specialization, availability FROM doctor");
-                while (rs.next()) {
-                    model.addRow(new Object[]{
-                        rs.getInt("doctor_id"),
-                        rs.getString("name"),
-                        rs.getString("specialization"),
-                        rs.getBoolean("availability") ? "Yes" : "No"
-                    });
+            DataAccess.onSwing(this, () -> Metrics.record("doctor.list", () -> SHARDS.concat(shard -> DOCTORS.all())), rows -> {
+                rows.forEach(doctor -> model.addRow(row(doctor)));
+                setTitle("Registered Doctors");
+                AVAILABILITY_EVENTS.whileOpen(this, null, changes -> changes.forEach(doctor -> update(model, doctor)));
+            }, e -> JOptionPane.showMessageDialog(this, "Failed to load doctors: " + e.getMessage()));
+            JButton toggleBtn = new JButton("Toggle Availability");
+            toggleBtn.addActionListener(e -> {
+                int row = table.getSelectedRow();
+                if (row < 0) {
+                    JOptionPane.showMessageDialog(this, "Select a doctor first.");
+                    return;
                 }
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "Failed to load doctors: " + e.getMessage());
-            }
+                int doctorId = (Integer) model.getValueAt(row, 0);
+                String specialization = (String) model.getValueAt(row, 2);
+                boolean available = !"Yes".equals(model.getValueAt(row, 3));
+                toggleBtn.setEnabled(false);
+                DataAccess.onSwing(this, () -> SERVICE.setDoctorAvailability(doctorId, specialization, available), updated -> {
+                    model.setValueAt(available ? "Yes" : "No", row, 3);
+                    toggleBtn.setEnabled(true);
+                }, ex -> {
+                    toggleBtn.setEnabled(true);
+                    JOptionPane.showMessageDialog(this, "Failed to update availability: " + ex.getMessage());
+                });
+            });
             add(new JScrollPane(table));
+            add(toggleBtn, BorderLayout.SOUTH);
             setVisible(true);
         }
+        private static Object[] row(DoctorRepository.Row doctor) {
+            return new Object[]{
+                doctor.doctorId(),
+                doctor.name(),
+                doctor.specialization(),
+                doctor.available() ? "Yes" : "No"
+            };
+        }
+        // Rewrites the doctor's row, or appends it for a doctor registered since the table loaded.
+        private static void update(DefaultTableModel model, DoctorRepository.Row doctor) {
+            Object[] values = row(doctor);
+            for (int i = 0; i < model.getRowCount(); i++) {
+                if (model.getValueAt(i, 0).equals(doctor.doctorId())) {
+                    for (int column = 1; column < values.length; column++) {
+                        model.setValueAt(values[column], i, column);
+                    }
+                    return;
+                }
+            }
+            model.addRow(values);
+        }
     }
 
     // --- View Appointments ---
+    // Lists the hot table; "Archived..." opens a read-only window over appointment_archive.
     static class ViewAppointments extends JFrame {
         public ViewAppointments() {
-            setTitle("Appointments");
+            this(false);
+        }
+
+        ViewAppointments(boolean archived) {
+            String title = archived ? "Archived Appointments" : "Appointments";
+            setTitle(title + " (loading...)");
             setSize(700, 300);
             setDefaultCloseOperation(DISPOSE_ON_CLOSE);
             String[] columns = {"ID", "Patient ID", "Doctor ID", "Date", "Status"};
-            DefaultTableModel model = new DefaultTableModel(columns, 0);
+            PagedTableModel model = new PagedTableModel(this, HospitalApp::readConnection, SHARDS,
+                    archived ? AppointmentRepository.ARCHIVE : "appointment", "appointment_id",
+                    AppointmentRepository.COLUMNS, columns,
+                    rs -> {
+                        AppointmentRepository.Row appointment = AppointmentRepository.Row.map(rs);
+                        return new Object[]{
+                            appointment.appointmentId(),
+                            appointment.patientId(),
+                            appointment.doctorId(),
+                            appointment.date(),
+                            appointment.status()
+                        };
+                    },
+                    e -> JOptionPane.showMessageDialog(this, "Failed to load appointments: " + e.getMessage()));
             JTable table = new JTable(model);
-            try (Connection conn = getConnection()) {
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT appointment_id, patient_id, doctor_id, appointment_date, status FROM appointment");
+            add(new JScrollPane(table));
+            if (archived) {
+                model.load(() -> setTitle(title));
+                setVisible(true);
+                return;
+            }
+            model.refreshEvery("updated_at", Integer.getInteger("hospital.appointments.refreshMillis", 2_000), HospitalApp::getConnection)
+                    .archivedTo(AppointmentRepository.ARCHIVE, "archived_at")
+                    .load(() -> setTitle(title));
+            JComboBox<String> statusCombo = new JComboBox<>(HospitalService.STATUSES.toArray(new String[0]));
+            JButton setStatusBtn = new JButton("Set Status");
+            setStatusBtn.addActionListener(e -> {
+                int row = table.getSelectedRow();
+                Object id = row < 0 ? null : model.getValueAt(row, 0);
+                if (id == null) {
+                    JOptionPane.showMessageDialog(this, "Select an appointment first.");
+                    return;
+                }
+                String status = (String) statusCombo.getSelectedItem();
+                setStatusBtn.setEnabled(false);
+                // The live refresh picks the change up on its next tick.
+                DataAccess.onSwing(this, () -> {
+                    SERVICE.setAppointmentStatus((Integer) id, status);
+                    return null;
+                }, done -> setStatusBtn.setEnabled(true), ex -> {
+                    setStatusBtn.setEnabled(true);
+                    JOptionPane.showMessageDialog(this, "Failed to update appointment: " + ex.getMessage());
+                });
+            });
+            JPanel statusPanel = new JPanel();
+            statusPanel.add(statusCombo);
+            statusPanel.add(setStatusBtn);
+            JButton archiveBtn = new JButton("Archived...");
+            archiveBtn.addActionListener(e -> new ViewAppointments(true));
+            statusPanel.add(archiveBtn);
+            add(statusPanel, BorderLayout.SOUTH);
+            setVisible(true);
+        }
+    }
+
+    // --- Appointment Dashboard ---
+    // Reads only the analytics rollups, so opening it never scans the appointment or patient tables.
+    static class AppointmentDashboard extends JFrame {
+        private static final int PAST_DAYS = 7, NEXT_DAYS = 7;
+        private final DefaultTableModel perDay = new DefaultTableModel();
+        private final DefaultTableModel byStatus = new DefaultTableModel(new String[]{"Status", "Appointments", "Share"}, 0);
+        private final DefaultTableModel mix = new DefaultTableModel(new String[]{"Age", "Gender", "Status", "Appointments"}, 0);
+        private final JButton refreshBtn = new JButton("Refresh");
+
+        public AppointmentDashboard() {
+            setTitle("Appointment Dashboard");
+            setSize(900, 400);
+            setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+            JTabbedPane tabs = new JTabbedPane();
+            tabs.addTab("Per Dentist per Day", new JScrollPane(new JTable(perDay)));
+            tabs.addTab("By Status", new JScrollPane(new JTable(byStatus)));
+            tabs.addTab("Patient Mix", new JScrollPane(new JTable(mix)));
+            add(tabs);
+            refreshBtn.addActionListener(e -> load());
+            add(refreshBtn, BorderLayout.SOUTH);
+            load();
+            setVisible(true);
+        }
+
+        private record Figures(Map<Integer, Map<LocalDate, Long>> perDay, Map<String, Long> byStatus,
+                               Map<AppointmentAnalytics.Mix, Long> mix) {}
+
+        private void load() {
+            refreshBtn.setEnabled(false);
+            LocalDate from = LocalDate.now().minusDays(PAST_DAYS);
+            LocalDate to = LocalDate.now().plusDays(NEXT_DAYS);
+            DataAccess.onSwing(this, () -> new Figures(SERVICE.appointmentsPerDoctorPerDay(from, to),
+                    SERVICE.appointmentsByStatus(from, to), SERVICE.appointmentPatientMix()), figures -> {
+                List<String> columns = new ArrayList<>(List.of("Doctor ID"));
+                for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                    columns.add(day.toString());
+                }
+                perDay.setDataVector(new Object[0][], columns.toArray());
+                figures.perDay().forEach((doctorId, days) -> {
+                    Object[] row = new Object[columns.size()];
+                    row[0] = doctorId;
+                    days.forEach((day, count) -> row[1 + (int) (day.toEpochDay() - from.toEpochDay())] = count);
+                    perDay.addRow(row);
+                });
+                byStatus.setRowCount(0);
+                long total = figures.byStatus().values().stream().mapToLong(Long::longValue).sum();
+                figures.byStatus().forEach((status, count) ->
+                        byStatus.addRow(new Object[]{status, count, String.format("%.1f%%", 100.0 * count / total)}));
+                mix.setRowCount(0);
+                figures.mix().forEach((key, count) -> mix.addRow(new Object[]{
+                        key.ageBand() < 0 ? "?" : key.ageBand() + "-" + (key.ageBand() + 9), key.gender(), key.status(), count}));
+                refreshBtn.setEnabled(true);
+            }, e -> {
+                refreshBtn.setEnabled(true);
+                JOptionPane.showMessageDialog(this, "Failed to load dashboard: " + e.getMessage());
+            });
+        }
+    }
+
+    // --- Find Patient ---
+    // Search-as-you-type box for the registration and booking windows: once minChars are typed, matching
+    // patients are listed beside it (in-memory index lookup, then one query by id). Choosing one passes its id
+    // to onPick. Used with findPatientsByPhone and findPatientsByName.
+    static class PatientLookup extends JPanel {
+        interface Search {
+            List<HospitalService.PatientMatch> find(String text, int limit) throws SQLException;
+        }
+
+        private static final int MAX_MATCHES = 10;
+        private final Window owner;
+        private final int minChars;
+        private final Search search;
+        private final JTextField textField = new JTextField();
+        private final JComboBox<HospitalService.PatientMatch> matches = new JComboBox<>();
+        private int searches;
+        private boolean filling;
+
+        PatientLookup(Window owner, int minChars, Search search, IntConsumer onPick) {
+            super(new GridLayout(1, 2));
+            this.owner = owner;
+            this.minChars = minChars;
+            this.search = search;
+            textField.getDocument().addDocumentListener(new DocumentListener() {
+                @Override public void insertUpdate(DocumentEvent e) { search(); }
+                @Override public void removeUpdate(DocumentEvent e) { search(); }
+                @Override public void changedUpdate(DocumentEvent e) { search(); }
+            });
+            matches.addActionListener(e -> {
+                HospitalService.PatientMatch match = (HospitalService.PatientMatch) matches.getSelectedItem();
+                if (!filling && match != null) {
+                    onPick.accept(match.patientId());
+                }
+            });
+            add(textField);
+            add(matches);
+        }
+
+        private void search() {
+            int current = ++searches;
+            String text = textField.getText().trim();
+            matches.removeAllItems();
+            if (text.length() < minChars) {
+                return;
+            }
+            DataAccess.onSwing(owner, () -> search.find(text, MAX_MATCHES), found -> {
+                if (current != searches) {
+                    return; // the box changed while this lookup ran
+                }
+                filling = true;
+                found.forEach(matches::addItem);
+                filling = false;
+                matches.setToolTipText(found.isEmpty() ? "No matching patient" : null);
+            }, e -> matches.setToolTipText("Lookup failed: " + e.getMessage()));
+        }
+    }
+
+    // --- Repositories ---
+    // The SQL for patient, doctor and appointment rows, used by both frontends and by the service. Methods that
+    // take a Connection run inside the caller's transaction; the others borrow one and close everything they
+    // opened before returning. Rows are read column by column into records. Each statement's SQL is a constant
+    // so the pool's per-connection statement cache can reuse it.
+    static final class PatientRepository {
+        record Row(int patientId, String name, int age, String gender, String contact, String selectedDoctor) {
+            static Row map(ResultSet rs) throws SQLException {
+                return new Row(rs.getInt("patient_id"), rs.getString("name"), rs.getInt("age"), rs.getString("gender"),
+                        rs.getString("contact"), rs.getString("selectedDoctor"));
+            }
+        }
+
+        static final String COLUMNS = "patient_id, name, age, gender, contact, selectedDoctor";
+        // Binds name, age, gender, contact, doctor_id; inserts nothing when the doctor does not exist.
+        static final String INSERT_FOR_DOCTOR = "INSERT INTO patient (name, age, gender, contact, selectedDoctor, doctor_id)"
+                + " SELECT ?, ?, ?, ?, CONCAT(doctor_id, ': ', name), doctor_id FROM doctor WHERE doctor_id = ?";
+        // Binds name, age, gender, contact, selectedDoctor, doctor_id; see bind().
+        static final String INSERT = "INSERT INTO patient (name, age, gender, contact, selectedDoctor, doctor_id)"
+                + " VALUES (?, ?, ?, ?, ?, ?)";
+
+        private final ConnectionSource source, reads;
+
+        PatientRepository(ConnectionSource source) {
+            this(source, source);
+        }
+
+        // reads serves the whole-table listings, which may lag behind source.
+        PatientRepository(ConnectionSource source, ConnectionSource reads) {
+            this.source = source;
+            this.reads = reads;
+        }
+
+        // Returns the new patient_id; selectedDoctor is filled in from the doctor row.
+        int insert(Connection conn, String name, int age, String gender, String contact, int doctorId) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_FOR_DOCTOR, Statement.RETURN_GENERATED_KEYS)) {
+                bindForDoctor(stmt, name, age, gender, contact, doctorId);
+                if (stmt.executeUpdate() == 0) {
+                    throw new IllegalArgumentException("Unknown doctor " + doctorId + ".");
+                }
+                return generatedKey(stmt);
+            }
+        }
+
+        int insert(String name, int age, String gender, String contact, int doctorId) throws SQLException {
+            try (Connection conn = source.getConnection()) {
+                return insert(conn, name, age, gender, contact, doctorId);
+            }
+        }
+
+        // For callers that only have the "id: name" combo item, which may be blank; returns the new patient_id.
+        int insert(String name, int age, String gender, String contact, String selectedDoctor) throws SQLException {
+            try (Connection conn = source.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS)) {
+                bind(stmt, name, age, gender, contact, selectedDoctor);
+                stmt.executeUpdate();
+                return generatedKey(stmt);
+            }
+        }
+
+        static void bindForDoctor(PreparedStatement stmt, String name, int age, String gender, String contact,
+                                  int doctorId) throws SQLException {
+            stmt.setString(1, name);
+            stmt.setInt(2, age);
+            stmt.setString(3, gender);
+            stmt.setString(4, contact);
+            stmt.setInt(5, doctorId);
+        }
+
+        // Binds INSERT. doctor_id is taken from a leading "id:" in selectedDoctor and is NULL otherwise.
+        static void bind(PreparedStatement stmt, String name, int age, String gender, String contact,
+                         String selectedDoctor) throws SQLException {
+            stmt.setString(1, name);
+            stmt.setInt(2, age);
+            stmt.setString(3, gender);
+            stmt.setString(4, contact);
+            int doctorId = doctorIdOf(selectedDoctor);
+            stmt.setString(5, selectedDoctor == null || selectedDoctor.isBlank() ? null : selectedDoctor);
+            if (doctorId > 0) {
+                stmt.setInt(6, doctorId);
+            } else {
+                stmt.setNull(6, Types.INTEGER);
+            }
+        }
+
+        // Returns the patients in the order of ids; ids that do not exist are skipped.
+        List<Row> byIds(int[] ids) throws SQLException {
+            if (ids.length == 0) {
+                return List.of();
+            }
+            // Padding the IN list to a power of two keeps the number of distinct statements (and cache entries) small.
+            int width = ids.length == 1 ? 1 : Integer.highestOneBit(ids.length - 1) << 1;
+            String in = String.join(", ", Collections.nCopies(width, "?"));
+            Map<Integer, Row> byId = new HashMap<>();
+            try (Connection conn = source.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS + " FROM patient WHERE patient_id IN (" + in + ")")) {
+                for (int i = 0; i < width; i++) {
+                    stmt.setInt(i + 1, ids[Math.min(i, ids.length - 1)]);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        Row row = Row.map(rs);
+                        byId.put(row.patientId(), row);
+                    }
+                }
+            }
+            List<Row> rows = new ArrayList<>(ids.length);
+            for (int id : ids) {
+                Row row = byId.get(id);
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+
+        List<Row> all() throws SQLException {
+            List<Row> rows = new ArrayList<>();
+            try (Connection conn = reads.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS + " FROM patient ORDER BY patient_id");
+                 ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    model.addRow(new Object[]{
-                        rs.getInt("appointment_id"),
-                        rs.getInt("patient_id"),
-                        rs.getInt("doctor_id"),
-                        rs.getDate("appointment_date"),
-                        rs.getString("status")
-                    });
+                    rows.add(Row.map(rs));
                 }
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "Failed to load appointments: " + e.getMessage());
             }
-            add(new JScrollPane(table));
-            setVisible(true);
+            return rows;
+        }
+
+        // Streams off a forward-only server-side cursor, so memory stays constant regardless of table size.
+        // The stream holds a pooled connection until it is closed: always use it in try-with-resources.
+        Stream<Row> streamAll() throws SQLException {
+            Connection conn = reads.getConnection();
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS + " FROM patient ORDER BY patient_id",
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                stmt.setFetchSize(Integer.MIN_VALUE); // Connector/J: stream rows one by one instead of buffering the result
+                ResultSet rs = stmt.executeQuery();
+                Spliterator<Row> rows = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+                        Spliterator.ORDERED | Spliterator.NONNULL) {
+                    @Override
+                    public boolean tryAdvance(Consumer<? super Row> action) {
+                        try {
+                            if (!rs.next()) {
+                                return false;
+                            }
+                            action.accept(Row.map(rs));
+                            return true;
+                        } catch (SQLException e) {
+                            throw new IllegalStateException("Failed to read patient row", e);
+                        }
+                    }
+                };
+                return StreamSupport.stream(rows, false).onClose(() -> {
+                    try (conn; stmt; rs) {
+                        // closes the cursor, then the statement, then returns the connection
+                    } catch (SQLException e) {
+                        throw new IllegalStateException("Failed to close patient cursor", e);
+                    }
+                });
+            } catch (SQLException | RuntimeException e) {
+                conn.close();
+                throw e;
+            }
+        }
+
+        static int doctorIdOf(String selectedDoctor) {
+            int colon = selectedDoctor == null ? -1 : selectedDoctor.indexOf(':');
+            try {
+                return colon > 0 ? Integer.parseInt(selectedDoctor.substring(0, colon).trim()) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
         }
     }
 
-    // --- Utility: Get DB Connection ---
-    private static Connection getConnection() throws SQLException {
-        String url = "jdbc:mysql://localhost:3306/hospital_db";
-        String user = "root";
-        String password = "";
-        return DriverManager.getConnection(url, user, password);
+    static final class DoctorRepository {
+        record Row(int doctorId, String name, String specialization, boolean available) {
+            static Row map(ResultSet rs) throws SQLException {
+                return new Row(rs.getInt("doctor_id"), rs.getString("name"), rs.getString("specialization"),
+                        rs.getBoolean("availability"));
+            }
+        }
+
+        private final ConnectionSource source, reads;
+
+        DoctorRepository(ConnectionSource source) {
+            this(source, source);
+        }
+
+        DoctorRepository(ConnectionSource source, ConnectionSource reads) {
+            this.source = source;
+            this.reads = reads;
+        }
+
+        // Returns the new doctor_id.
+        int insert(String name, String specialization, boolean available) throws SQLException {
+            try (Connection conn = source.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                         "INSERT INTO doctor (name, specialization, availability) VALUES (?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setString(1, name);
+                stmt.setString(2, specialization);
+                stmt.setBoolean(3, available);
+                stmt.executeUpdate();
+                return generatedKey(stmt);
+            }
+        }
+
+        int setAvailability(int doctorId, boolean available) throws SQLException {
+            try (Connection conn = source.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement("UPDATE doctor SET availability = ? WHERE doctor_id = ?")) {
+                stmt.setBoolean(1, available);
+                stmt.setInt(2, doctorId);
+                return stmt.executeUpdate();
+            }
+        }
+
+        List<Row> all() throws SQLException {
+            List<Row> rows = new ArrayList<>();
+            try (Connection conn = reads.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                         "SELECT doctor_id, name, specialization, availability FROM doctor ORDER BY doctor_id");
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(Row.map(rs));
+                }
+            }
+            return rows;
+        }
+
+        record Changes(List<Row> rows, Timestamp newest) {}
+
+        // Doctors added or updated at or after since (all of them when since is null), with the newest
+        // updated_at seen. Reads the primary: a watermark taken from a lagging replica could skip rows.
+        Changes changedSince(Timestamp since) throws SQLException {
+            List<Row> rows = new ArrayList<>();
+            Timestamp newest = since;
+            try (Connection conn = source.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(since == null
+                         ? "SELECT doctor_id, name, specialization, availability, updated_at FROM doctor"
+                         : "SELECT doctor_id, name, specialization, availability, updated_at FROM doctor WHERE updated_at >= ?")) {
+                if (since != null) {
+                    stmt.setTimestamp(1, since);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(Row.map(rs));
+                        Timestamp updatedAt = rs.getTimestamp("updated_at");
+                        if (newest == null || updatedAt.after(newest)) {
+                            newest = updatedAt;
+                        }
+                    }
+                }
+            }
+            return new Changes(rows, newest);
+        }
+
+        // Available doctors with this specialization as "id: name" combo items.
+        List<String> roster(String specialization) throws SQLException {
+            List<String> doctors = new ArrayList<>();
+            try (Connection conn = reads.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                         "SELECT doctor_id, name FROM doctor WHERE specialization = ? AND availability = TRUE")) {
+                stmt.setString(1, specialization);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        doctors.add(rs.getInt("doctor_id") + ": " + rs.getString("name"));
+                    }
+                }
+            }
+            return doctors;
+        }
+    }
+
+    static final class AppointmentRepository {
+        // cohort is null for rows booked without analytics.
+        record Row(int appointmentId, int patientId, int doctorId, LocalDate date, String status, LocalDateTime slotStart,
+                   AppointmentAnalytics.Cohort cohort) {
+            static Row map(ResultSet rs) throws SQLException {
+                Date date = rs.getDate("appointment_date");
+                Timestamp slotStart = rs.getTimestamp("slot_start");
+                String status = rs.getString("status");
+                int ageBand = rs.getInt("mix_age_band");
+                AppointmentAnalytics.Cohort cohort = rs.wasNull() ? null
+                        : new AppointmentAnalytics.Cohort(ageBand, rs.getString("mix_gender"));
+                return new Row(rs.getInt("appointment_id"), rs.getInt("patient_id"), rs.getInt("doctor_id"),
+                        date == null ? null : date.toLocalDate(), status == null ? "Scheduled" : status,
+                        slotStart == null ? null : slotStart.toLocalDateTime(), cohort);
+            }
+        }
+
+        static final String COLUMNS = "appointment_id, patient_id, doctor_id, appointment_date, status, slot_start, mix_age_band, mix_gender";
+        // Appointments older than the archive horizon (see AppointmentArchiver); same columns, read-only.
+        static final String ARCHIVE = "appointment_archive";
+
+        void insert(Connection conn, int patientId, int doctorId, LocalDateTime slotStart, AppointmentAnalytics.Cohort cohort)
+                throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO appointment (patient_id, doctor_id, appointment_date,"
+                    + " slot_start, status, mix_age_band, mix_gender) VALUES (?, ?, ?, ?, 'Scheduled', ?, ?)")) {
+                stmt.setInt(1, patientId);
+                stmt.setInt(2, doctorId);
+                stmt.setDate(3, Date.valueOf(slotStart.toLocalDate()));
+                stmt.setTimestamp(4, Timestamp.valueOf(slotStart));
+                stmt.setObject(5, cohort == null ? null : cohort.ageBand(), Types.INTEGER);
+                stmt.setString(6, cohort == null ? null : cohort.gender());
+                stmt.executeUpdate();
+            }
+        }
+
+        // Locks the row until the caller's transaction ends; null if there is no such appointment.
+        Row lockForUpdate(Connection conn, int appointmentId) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT " + COLUMNS + " FROM appointment WHERE appointment_id = ? FOR UPDATE")) {
+                stmt.setInt(1, appointmentId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? Row.map(rs) : null;
+                }
+            }
+        }
+
+        // Clearing slot_start frees the slot for another booking.
+        void updateStatus(Connection conn, int appointmentId, String status, boolean clearSlot) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement(clearSlot
+                    ? "UPDATE appointment SET status = ?, slot_start = NULL WHERE appointment_id = ?"
+                    : "UPDATE appointment SET status = ? WHERE appointment_id = ?")) {
+                stmt.setString(1, status);
+                stmt.setInt(2, appointmentId);
+                stmt.executeUpdate();
+            }
+        }
+
+        // Moves up to limit appointments dated before cutoff into appointment_archive, oldest first, inside the
+        // caller's transaction; returns how many moved. The row with the highest id stays behind so the
+        // AUTO_INCREMENT counter can never fall back to an id the archive already holds.
+        int archiveBefore(Connection conn, LocalDate cutoff, int limit) throws SQLException {
+            StringBuilder ids = new StringBuilder();
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT appointment_id FROM appointment WHERE appointment_date < ?"
+                    + " AND appointment_id < (SELECT MAX(appointment_id) FROM appointment) ORDER BY appointment_date LIMIT ? FOR UPDATE")) {
+                stmt.setDate(1, Date.valueOf(cutoff));
+                stmt.setInt(2, limit);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        ids.append(ids.isEmpty() ? "" : ",").append(rs.getInt(1));
+                    }
+                }
+            }
+            if (ids.isEmpty()) {
+                return 0;
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("INSERT INTO " + ARCHIVE + " (" + COLUMNS + ", updated_at) SELECT " + COLUMNS
+                        + ", updated_at FROM appointment WHERE appointment_id IN (" + ids + ")");
+                return stmt.executeUpdate("DELETE FROM appointment WHERE appointment_id IN (" + ids + ")");
+            }
+        }
+
+        List<LocalDateTime> bookedSlots(Connection conn, int doctorId, LocalDate date) throws SQLException {
+            List<LocalDateTime> slots = new ArrayList<>();
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT slot_start FROM appointment WHERE doctor_id = ? AND appointment_date = ? AND slot_start IS NOT NULL")) {
+                stmt.setInt(1, doctorId);
+                stmt.setDate(2, Date.valueOf(date));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        slots.add(rs.getTimestamp(1).toLocalDateTime());
+                    }
+                }
+            }
+            return slots;
+        }
+    }
+
+    static int generatedKey(Statement stmt) throws SQLException {
+        try (ResultSet keys = stmt.getGeneratedKeys()) {
+            if (!keys.next()) {
+                throw new SQLException("No generated key returned");
+            }
+            return keys.getInt(1);
+        }
+    }
+
+    // --- Booking and Registration Service ---
+    // The business operations behind every window, usable from any thread and without a UI.
+    // Bad input is reported as IllegalArgumentException, database failures as SQLException. Writes go to the
+    // clinic that owns the doctor or appointment; new doctors join the home clinic.
+    static class HospitalService {
+        private static final Pattern CONTACT = Pattern.compile("^09\\d{8}$");
+        static final List<String> STATUSES = List.of("Scheduled", "Completed", "No-Show", "Cancelled");
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final PatientRepository patients;
+        private final DoctorRepository doctors;
+        private final AppointmentRepository appointments = new AppointmentRepository();
+        private final DoctorRoster roster;
+        private final AvailabilityBus events;
+        private final SlotScheduler slots;
+        private final AvailabilityIndex availability;
+        private final DoctorLoadBalancer loads;
+        private final ContactIndex contacts;
+        private final NameIndex names;
+        private final AppointmentAnalytics analytics;
+
+        HospitalService(ConnectionSource source, ShardMap shards, DoctorRoster roster, AvailabilityBus events, SlotScheduler slots,
+                        AvailabilityIndex availability, DoctorLoadBalancer loads, ContactIndex contacts, NameIndex names,
+                        AppointmentAnalytics analytics) {
+            this.source = source;
+            this.shards = shards;
+            this.patients = new PatientRepository(source);
+            this.doctors = new DoctorRepository(source);
+            this.roster = roster;
+            this.events = events;
+            this.slots = slots;
+            this.availability = availability;
+            this.loads = loads;
+            this.contacts = contacts;
+            this.names = names;
+            this.analytics = analytics;
+        }
+
+        record PatientMatch(int patientId, String name, String contact) {
+            @Override
+            public String toString() { return patientId + ": " + name + " (" + contact + ")"; }
+        }
+
+        // Returns the new patient_id. selectedDoctor is filled in from the doctor row.
+        int registerPatient(String name, int age, String gender, String contact, int doctorId) throws SQLException {
+            validatePatient(name, age, contact);
+            int patientId = Metrics.record("patient.insert",
+                    () -> shards.on(doctorId, () -> patients.insert(name, age, gender, contact, doctorId)));
+            indexPatient(patientId, name, contact);
+            return patientId;
+        }
+
+        // Ids of patients already registered with this contact, for duplicate detection.
+        int[] patientsWithContact(String contact) throws SQLException {
+            return contacts.exact(contact);
+        }
+
+        // Makes a patient inserted by this process searchable before the indexes next look at the table.
+        void indexPatient(int patientId, String name, String contact) {
+            contacts.add(contact, patientId);
+            names.add(patientId, name);
+        }
+
+        List<PatientMatch> findPatientsByPhone(String prefix, int limit) throws SQLException {
+            return patientsById(contacts.prefix(prefix, limit));
+        }
+
+        // Ranked, typo-tolerant; meant to be called on every keystroke.
+        List<PatientMatch> findPatientsByName(String text, int limit) throws SQLException {
+            return patientsById(names.search(text, limit).stream().mapToInt(NameIndex.Match::patientId).toArray());
+        }
+
+        // Returns the patients in the order of ids.
+        private List<PatientMatch> patientsById(int[] ids) throws SQLException {
+            if (ids.length == 0) {
+                return List.of();
+            }
+            return Metrics.record("patient.byId", () -> {
+                Map<Integer, PatientRepository.Row> byId = new HashMap<>();
+                for (PatientRepository.Row row : shards.concat(shard -> patients.byIds(ShardMap.idsIn(shard, ids)))) {
+                    byId.put(row.patientId(), row);
+                }
+                List<PatientMatch> matches = new ArrayList<>(ids.length);
+                for (int id : ids) {
+                    PatientRepository.Row row = byId.get(id);
+                    if (row != null) {
+                        matches.add(new PatientMatch(row.patientId(), row.name(), row.contact()));
+                    }
+                }
+                return matches;
+            });
+        }
+
+        // Returns the new doctor_id.
+        int registerDoctor(String name, String specialization, boolean available) throws SQLException {
+            if (name == null || name.isBlank() || specialization == null || specialization.isBlank()) {
+                throw new IllegalArgumentException("Name and specialization are required.");
+            }
+            try {
+                return Metrics.record("doctor.insert", () -> doctors.insert(name, specialization, available));
+            } finally {
+                roster.invalidate(specialization);
+                events.changed();
+            }
+        }
+
+        // specialization may be null when the caller does not know it; the whole roster is then invalidated.
+        int setDoctorAvailability(int doctorId, String specialization, boolean available) throws SQLException {
+            try {
+                return Metrics.record("doctor.availability", () -> shards.on(doctorId, () -> doctors.setAvailability(doctorId, available)));
+            } finally {
+                if (specialization != null) {
+                    roster.invalidate(specialization);
+                } else {
+                    roster.invalidateAll();
+                }
+                events.changed();
+            }
+        }
+
+        // Books the given slot, or the first free one that day when time is null.
+        LocalDateTime bookAppointment(int patientId, int doctorId, LocalDate date, LocalTime time) throws SQLException {
+            validateAppointmentDate(date);
+            if (ShardMap.clinicOf(patientId) != ShardMap.clinicOf(doctorId)) {
+                throw new IllegalArgumentException("Patient " + patientId + " is registered at clinic " + ShardMap.clinicOf(patientId)
+                        + " and doctor " + doctorId + " works at clinic " + ShardMap.clinicOf(doctorId) + ".");
+            }
+            return time == null ? slots.bookFirstFree(patientId, doctorId, date) : slots.book(patientId, doctorId, date.atTime(time));
+        }
+
+        // Books the first free slot on date with the doctor of this specialization who has the fewest bookings
+        // that day in the patient's clinic.
+        DoctorLoadBalancer.Assignment bookLeastLoaded(int patientId, String specialization, LocalDate date) throws SQLException {
+            validateAppointmentDate(date);
+            return loads.book(patientId, ShardMap.clinicOf(patientId), specialization, date);
+        }
+
+        // The home clinic's doctor with the fewest bookings on date, for registering a new patient with.
+        AvailabilityIndex.Doctor leastLoadedDoctor(String specialization, LocalDate date) throws SQLException {
+            return loads.leastLoaded(shards.home().clinic(), specialization, date);
+        }
+
+        private record StatusChange(int doctorId, LocalDateTime freedSlot) {}
+
+        // Cancelling clears slot_start so the slot can be booked again.
+        void setAppointmentStatus(int appointmentId, String status) throws SQLException {
+            if (!STATUSES.contains(status)) {
+                throw new IllegalArgumentException("Unknown status: " + status);
+            }
+            boolean cancel = status.equals("Cancelled");
+            StatusChange result = Metrics.record("appointment.status", () -> {
+                try (Connection conn = shards.on(appointmentId, source::getConnection)) {
+                    conn.setAutoCommit(false);
+                    AppointmentRepository.Row row = appointments.lockForUpdate(conn, appointmentId);
+                    if (row == null) {
+                        throw new IllegalArgumentException("Unknown or archived appointment " + appointmentId + ".");
+                    }
+                    if (row.status().equals(status)) {
+                        return null;
+                    }
+                    appointments.updateStatus(conn, appointmentId, status, cancel);
+                    analytics.commit(conn, analytics.statusChanged(conn, row, status));
+                    return new StatusChange(row.doctorId(), cancel ? row.slotStart() : null);
+                }
+            });
+            if (result != null && result.freedSlot() != null) {
+                slots.released(result.doctorId(), result.freedSlot());
+            }
+        }
+
+        // Dashboard figures; all read from the rollups, never from appointment.
+        Map<Integer, Map<LocalDate, Long>> appointmentsPerDoctorPerDay(LocalDate from, LocalDate to) throws SQLException {
+            return analytics.perDoctorPerDay(from, to);
+        }
+
+        Map<String, Long> appointmentsByStatus(LocalDate from, LocalDate to) throws SQLException {
+            return analytics.byStatus(from, to);
+        }
+
+        Map<AppointmentAnalytics.Mix, Long> appointmentPatientMix() throws SQLException {
+            return analytics.patientMix();
+        }
+
+        List<String> cachedDoctors(String specialization) {
+            return roster.cached(specialization);
+        }
+
+        List<String> availableDoctors(String specialization) throws SQLException {
+            return roster.available(specialization);
+        }
+
+        List<AvailabilityIndex.FreeSlot> firstFreeSlots(String specialization, LocalDateTime after, int n) throws SQLException {
+            return availability.firstFree(specialization, after, n);
+        }
+
+        static void validatePatient(String name, int age, String contact) {
+            if (name == null || name.isBlank()) {
+                throw new IllegalArgumentException("Name is required.");
+            }
+            if (age < 0 || age > 150) {
+                throw new IllegalArgumentException("Age must be between 0 and 150.");
+            }
+            if (contact == null || !CONTACT.matcher(contact).matches()) {
+                throw new IllegalArgumentException("Contact must be exactly 10 digits and start with '09'.");
+            }
+        }
+
+        static void validateAppointmentDate(LocalDate date) {
+            LocalDate today = LocalDate.now();
+            if (date.getYear() < today.getYear()) {
+                throw new IllegalArgumentException("Appointment year cannot be in the past.");
+            } else if (date.getYear() == today.getYear() && !date.isAfter(today)) {
+                throw new IllegalArgumentException("Appointment date must be after today in the current year.");
+            }
+        }
+    }
+
+    // --- HTTP API ---
+    // JSON over HTTP for kiosks and the web front end. Exchanges run on a bounded pool sized to what the database
+    // can serve (hospital.http.threads); when its queue is full the accepting thread runs the exchange itself,
+    // which stops it accepting more until it is done.
+    //   GET  /api/doctors?specialization=Dentist
+    //   GET  /api/slots?specialization=Dentist&after=2026-10-20T08:00&limit=5
+    //   POST /api/patients                name, age, gender, contact, doctorId
+    //   POST /api/doctors                 name, specialization, available
+    //   POST /api/doctors/availability    doctorId, available
+    //   POST /api/appointments            patientId, doctorId, date[, time]
+    // POST bodies are application/x-www-form-urlencoded; query parameters are accepted too.
+    static class HttpApi {
+        private interface Endpoint {
+            String handle(Map<String, String> params) throws Exception;
+        }
+
+        // Upper bound on /api/slots?limit=; larger values are clamped to it.
+        static final int MAX_SLOTS = Integer.getInteger("hospital.http.maxSlots", 100);
+
+        private final HospitalService service;
+        private final HttpServer server;
+        private final ThreadPoolExecutor workers;
+
+        HttpApi(HospitalService service, int port) throws IOException {
+            this.service = service;
+            this.server = HttpServer.create(new InetSocketAddress(port), Integer.getInteger("hospital.http.backlog", 1024));
+            int threads = Integer.getInteger("hospital.http.threads", 32);
+            this.workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(Integer.getInteger("hospital.http.queue", 256)),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "hospital-http-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            workers.allowCoreThreadTimeOut(true);
+            server.setExecutor(workers);
+            server.createContext("/api/doctors", route(Map.of("GET", this::doctors, "POST", this::registerDoctor)));
+            server.createContext("/api/doctors/availability", route(Map.of("POST", this::availability)));
+            server.createContext("/api/slots", route(Map.of("GET", this::slots)));
+            server.createContext("/api/patients", route(Map.of("POST", this::registerPatient)));
+            server.createContext("/api/appointments", route(Map.of("POST", this::bookAppointment)));
+        }
+
+        void start() { server.start(); }
+        void stop() {
+            server.stop(0);
+            workers.shutdown();
+        }
+        int port() { return server.getAddress().getPort(); }
+
+        private String doctors(Map<String, String> params) throws SQLException {
+            StringBuilder json = new StringBuilder("[");
+            for (String doctor : service.availableDoctors(params.getOrDefault("specialization", DENTIST))) {
+                String[] parts = doctor.split(": ", 2);
+                json.append(json.length() > 1 ? "," : "")
+                        .append("{\"id\":").append(parts[0]).append(",\"name\":").append(quote(parts[1])).append('}');
+            }
+            return json.append(']').toString();
+        }
+
+        private String slots(Map<String, String> params) throws SQLException {
+            String after = params.get("after");
+            List<AvailabilityIndex.FreeSlot> free = service.firstFreeSlots(params.getOrDefault("specialization", DENTIST),
+                    after == null ? LocalDate.now().plusDays(1).atStartOfDay() : LocalDateTime.parse(after),
+                    limit(params.getOrDefault("limit", "5")));
+            StringBuilder json = new StringBuilder("[");
+            for (AvailabilityIndex.FreeSlot slot : free) {
+                json.append(json.length() > 1 ? "," : "")
+                        .append("{\"doctorId\":").append(slot.doctorId())
+                        .append(",\"doctorName\":").append(quote(slot.doctorName()))
+                        .append(",\"start\":").append(quote(slot.start().toString())).append('}');
+            }
+            return json.append(']').toString();
+        }
+
+        private static int limit(String value) {
+            int limit = Integer.parseInt(value);
+            if (limit < 1) {
+                throw new IllegalArgumentException("limit must be at least 1");
+            }
+            return Math.min(limit, MAX_SLOTS);
+        }
+
+        private String registerPatient(Map<String, String> params) throws SQLException {
+            int id = service.registerPatient(required(params, "name"), Integer.parseInt(required(params, "age")),
+                    params.get("gender"), required(params, "contact"), Integer.parseInt(required(params, "doctorId")));
+            return "{\"patientId\":" + id + "}";
+        }
+
+        private String registerDoctor(Map<String, String> params) throws SQLException {
+            int id = service.registerDoctor(required(params, "name"), required(params, "specialization"),
+                    Boolean.parseBoolean(params.getOrDefault("available", "true")));
+            return "{\"doctorId\":" + id + "}";
+        }
+
+        private String availability(Map<String, String> params) throws SQLException {
+            int updated = service.setDoctorAvailability(Integer.parseInt(required(params, "doctorId")), null,
+                    Boolean.parseBoolean(required(params, "available")));
+            return "{\"updated\":" + updated + "}";
+        }
+
+        private String bookAppointment(Map<String, String> params) throws SQLException {
+            String time = params.get("time");
+            LocalDateTime slot = service.bookAppointment(Integer.parseInt(required(params, "patientId")),
+                    Integer.parseInt(required(params, "doctorId")), LocalDate.parse(required(params, "date")),
+                    time == null || time.isBlank() ? null : LocalTime.parse(time));
+            return "{\"slot\":" + quote(slot.toString()) + "}";
+        }
+
+        private HttpHandler route(Map<String, Endpoint> byMethod) {
+            return exchange -> {
+                try (exchange) {
+                    Endpoint endpoint = byMethod.get(exchange.getRequestMethod());
+                    if (endpoint == null) {
+                        send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                        return;
+                    }
+                    try {
+                        send(exchange, 200, endpoint.handle(params(exchange)));
+                    } catch (SlotUnavailableException e) {
+                        send(exchange, 409, error(e));
+                    } catch (IllegalArgumentException | java.time.format.DateTimeParseException e) {
+                        send(exchange, 400, error(e));
+                    } catch (Exception e) {
+                        send(exchange, 500, error(e));
+                    }
+                }
+            };
+        }
+
+        private static Map<String, String> params(HttpExchange exchange) throws IOException {
+            Map<String, String> params = new HashMap<>();
+            parseForm(exchange.getRequestURI().getRawQuery(), params);
+            try (InputStream body = exchange.getRequestBody()) {
+                parseForm(new String(body.readAllBytes(), StandardCharsets.UTF_8), params);
+            }
+            return params;
+        }
+
+        private static void parseForm(String form, Map<String, String> into) {
+            if (form == null || form.isEmpty()) {
+                return;
+            }
+            for (String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+                into.put(key, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+
+        private static String required(Map<String, String> params, String name) {
+            String value = params.get(name);
+            if (value == null || value.isBlank()) {
+                throw new IllegalArgumentException("Missing parameter: " + name);
+            }
+            return value;
+        }
+
+        private static void send(HttpExchange exchange, int status, String json) throws IOException {
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        private static String error(Exception e) {
+            return "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}";
+        }
+
+        static String quote(String value) {
+            StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"' -> json.append("\\\"");
+                    case '\\' -> json.append("\\\\");
+                    case '\n' -> json.append("\\n");
+                    case '\r' -> json.append("\\r");
+                    case '\t' -> json.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            json.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            json.append(c);
+                        }
+                    }
+                }
+            }
+            return json.append('"').toString();
+        }
+    }
+
+    // --- Utility: Keyset-Paged Table Model ---
+    // Pages are fetched with "WHERE key > ? ORDER BY key LIMIT ?" as the JTable asks for their rows, and only the
+    // most recently used pages are kept. The first column of every row must be the integer key.
+    // Rows come from every clinic in shards. Ids sort by clinic first, so the table is the clinics' rows one clinic
+    // after another, and a page that runs off the end of one clinic continues in the next.
+    // All state is touched on the EDT only; queries run through DataAccess.
+    static class PagedTableModel extends AbstractTableModel {
+        interface RowMapper {
+            Object[] map(ResultSet rs) throws SQLException;
+        }
+
+        private final Window owner;
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final String table, keyColumn, selectList;
+        private final String[] columnNames;
+        private final RowMapper mapper;
+        private final Consumer<? super Exception> onError;
+        private final int pageSize = Integer.getInteger("hospital.table.pageSize", 200);
+        private final int maxPages = Integer.getInteger("hospital.table.cachedPages", 16);
+        private static final long REFRESH_OVERLAP_MILLIS = Long.getLong("hospital.table.refreshOverlapMillis", 2_000L);
+        private static final int REFRESH_OVERLAP_KEYS = Integer.getInteger("hospital.table.refreshOverlapKeys", 5_000);
+        private final Map<Integer, Object[][]> pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+                return size() > maxPages;
+            }
+        };
+        // Last key of every page seen so far: the seek anchor for the page after it.
+        private final TreeMap<Integer, Integer> lastKeys = new TreeMap<>();
+        private final Set<Integer> loading = new HashSet<>();
+        private int rowCount;
+        private boolean failed;
+        // Live refresh (see refreshEvery), per clinic: the key of the last counted row, the counted keys within
+        // REFRESH_OVERLAP_KEYS of it, and the newest version column value seen. maxKey is the highest counted key of all.
+        private String versionColumn;
+        private int refreshMillis;
+        private ConnectionSource changes;
+        private final Map<Integer, Integer> maxKeys = new HashMap<>();
+        private final Map<Integer, Set<Integer>> recentKeys = new HashMap<>();
+        private final Map<Integer, Timestamp> watermarks = new HashMap<>();
+        private int maxKey;
+        private Timer refreshTimer;
+        private boolean refreshing;
+        // Rows archived away (see archivedTo): the newest archive time seen per clinic, and the keys already taken out.
+        private String archiveTable, archivedAtColumn;
+        private final Map<Integer, Timestamp> archivedThrough = new HashMap<>();
+        private final Set<Integer> removed = new HashSet<>();
+
+        PagedTableModel(Window owner, ConnectionSource source, ShardMap shards, String table, String keyColumn, String selectList,
+                        String[] columnNames, RowMapper mapper, Consumer<? super Exception> onError) {
+            this.owner = owner;
+            this.source = source;
+            this.shards = shards;
+            this.table = table;
+            this.keyColumn = keyColumn;
+            this.selectList = selectList;
+            this.columnNames = columnNames;
+            this.mapper = mapper;
+            this.onError = onError;
+        }
+
+        // Call before load(). Every periodMillis the model reads only rows whose versionColumn (a timestamp bumped
+        // on insert and update) is newer than the last one seen: rows with new keys are appended, rows already
+        // on a cached page are replaced in place. A refresh costs one indexed range scan over the changes.
+        // Keys are handed out at insert but become visible at commit, so a row can turn up below keys already
+        // counted. The model keeps the counted keys of the last hospital.table.refreshOverlapKeys ids of each
+        // clinic: a changed row in that range that is not among them is a late insert, not an update.
+        // Changes are read from primary, not the (possibly replica) source the pages come from: a replica that
+        // lags more than the overlap would let rows slip under the watermark for good. The first watermark comes
+        // from the same snapshot as the row count, so it can only be older than the truth, never newer.
+        PagedTableModel refreshEvery(String versionColumn, int periodMillis, ConnectionSource primary) {
+            this.versionColumn = versionColumn;
+            this.refreshMillis = periodMillis;
+            this.changes = primary;
+            return this;
+        }
+
+        // With refreshEvery: rows that move to archiveTable (recording when in archivedAtColumn) leave the model
+        // as deletes. Cached pages from the first removed key on are dropped and refetched as they are painted.
+        PagedTableModel archivedTo(String archiveTable, String archivedAtColumn) {
+            this.archiveTable = archiveTable;
+            this.archivedAtColumn = archivedAtColumn;
+            return this;
+        }
+
+        private record Counted(int clinic, int rows, int maxKey, Set<Integer> recentKeys, Timestamp newest, Timestamp archivedThrough) {}
+
+        // Reads the row count of every clinic; pages are fetched lazily once the table starts painting rows.
+        void load(Runnable onLoaded) {
+            String sql = "SELECT COUNT(*), MAX(" + keyColumn + ")" + (versionColumn == null ? "" : ", MAX(" + versionColumn + ")")
+                    + (archiveTable == null ? "" : ", (SELECT MAX(" + archivedAtColumn + ") FROM " + archiveTable + ")")
+                    + " FROM " + table;
+            DataAccess.onSwing(owner, () -> Metrics.record(table + ".count", () -> shards.fanOut(shard -> {
+                try (Connection conn = source.getConnection()) {
+                    if (versionColumn == null) {
+                        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+                            rs.next();
+                            return new Counted(shard.clinic(), rs.getInt(1), rs.getInt(2), Set.of(), null, null);
+                        }
+                    }
+                    // One transaction, so the recent keys are read from the snapshot the count came from.
+                    conn.setAutoCommit(false);
+                    try (Statement stmt = conn.createStatement()) {
+                        Counted counted;
+                        try (ResultSet rs = stmt.executeQuery(sql)) {
+                            rs.next();
+                            counted = new Counted(shard.clinic(), rs.getInt(1), rs.getInt(2), new HashSet<>(),
+                                    rs.getTimestamp(3), archiveTable == null ? null : rs.getTimestamp(4));
+                        }
+                        try (ResultSet rs = stmt.executeQuery("SELECT " + keyColumn + " FROM " + table + " WHERE " + keyColumn
+                                + " > " + ((long) counted.maxKey() - REFRESH_OVERLAP_KEYS))) {
+                            while (rs.next()) {
+                                counted.recentKeys().add(rs.getInt(1));
+                            }
+                        }
+                        conn.commit();
+                        return counted;
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                }
+            }), List::size), counted -> {
+                for (Counted clinic : counted) {
+                    rowCount += clinic.rows();
+                    maxKeys.put(clinic.clinic(), clinic.maxKey());
+                    recentKeys.put(clinic.clinic(), new HashSet<>(clinic.recentKeys()));
+                    maxKey = Math.max(maxKey, clinic.maxKey());
+                    watermarks.put(clinic.clinic(), clinic.newest());
+                    archivedThrough.put(clinic.clinic(), clinic.archivedThrough());
+                }
+                fireTableDataChanged();
+                onLoaded.run();
+                if (versionColumn != null) {
+                    startRefresh();
+                }
+            }, this::fail);
+        }
+
+        private void startRefresh() {
+            refreshTimer = new Timer(refreshMillis, e -> refresh());
+            refreshTimer.start();
+            owner.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) {
+                    refreshTimer.stop();
+                }
+            });
+        }
+
+        private void refresh() {
+            if (refreshing || failed) {
+                return;
+            }
+            refreshing = true;
+            // Re-read a short overlap so a transaction that committed after a later timestamp was seen is not missed;
+            // re-applying a row (or a removal) is harmless.
+            Map<Integer, Timestamp> since = new HashMap<>(watermarks);
+            Map<Integer, Timestamp> archivedSince = new HashMap<>(archivedThrough);
+            String sql = "SELECT " + selectList + ", " + versionColumn + " FROM " + table + " WHERE " + versionColumn + " > ?"
+                    + " ORDER BY " + keyColumn;
+            DataAccess.onSwing(owner, () -> Metrics.record(table + ".refresh", () -> shards.fanOut(shard -> {
+                List<Object[]> changed = new ArrayList<>();
+                Timestamp newest = since.get(shard.clinic());
+                List<Integer> archived = new ArrayList<>();
+                Timestamp newestArchived = archivedSince.get(shard.clinic());
+                try (Connection conn = changes.getConnection()) {
+                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                        stmt.setTimestamp(1, overlap(newest));
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) {
+                                changed.add(mapper.map(rs));
+                                newest = newer(newest, rs.getTimestamp(versionColumn));
+                            }
+                        }
+                    }
+                    if (archiveTable != null) {
+                        try (PreparedStatement stmt = conn.prepareStatement("SELECT " + keyColumn + ", " + archivedAtColumn
+                                + " FROM " + archiveTable + " WHERE " + archivedAtColumn + " > ?")) {
+                            stmt.setTimestamp(1, overlap(newestArchived));
+                            try (ResultSet rs = stmt.executeQuery()) {
+                                while (rs.next()) {
+                                    archived.add(rs.getInt(1));
+                                    newestArchived = newer(newestArchived, rs.getTimestamp(2));
+                                }
+                            }
+                        }
+                    }
+                }
+                return new Delta(shard.clinic(), changed, newest, archived, newestArchived);
+            }), deltas -> deltas.stream().mapToInt(delta -> delta.rows().size() + delta.archived().size()).sum()), deltas -> {
+                refreshing = false;
+                // fanOut returns the clinics in id order, so the changed rows arrive in key order.
+                List<Object[]> changed = new ArrayList<>();
+                List<Integer> archived = new ArrayList<>();
+                for (Delta delta : deltas) {
+                    watermarks.put(delta.clinic(), delta.newest());
+                    archivedThrough.put(delta.clinic(), delta.newestArchived());
+                    changed.addAll(delta.rows());
+                    archived.addAll(delta.archived());
+                }
+                applyChanges(changed);
+                remove(archived);
+            }, e -> {
+                refreshing = false;
+                refreshTimer.stop();
+                onError.accept(e);
+            });
+        }
+
+        private record Delta(int clinic, List<Object[]> rows, Timestamp newest, List<Integer> archived, Timestamp newestArchived) {}
+
+        private static Timestamp overlap(Timestamp watermark) {
+            return watermark == null ? new Timestamp(0) : new Timestamp(watermark.getTime() - REFRESH_OVERLAP_MILLIS);
+        }
+
+        private static Timestamp newer(Timestamp a, Timestamp b) {
+            return a == null || (b != null && b.after(a)) ? b : a;
+        }
+
+        // Below the overlap every key is taken to be counted, as ContactIndex and NameIndex do.
+        private boolean counted(int key) {
+            int clinic = ShardMap.clinicOf(key);
+            int last = maxKeys.getOrDefault(clinic, 0);
+            return key <= last && (key <= last - REFRESH_OVERLAP_KEYS || recentKeys.getOrDefault(clinic, Set.of()).contains(key));
+        }
+
+        private void count(int key) {
+            int clinic = ShardMap.clinicOf(key);
+            int last = Math.max(key, maxKeys.getOrDefault(clinic, 0));
+            maxKeys.put(clinic, last);
+            Set<Integer> recent = recentKeys.computeIfAbsent(clinic, c -> new HashSet<>());
+            recent.add(key);
+            recent.removeIf(k -> k <= last - REFRESH_OVERLAP_KEYS);
+        }
+
+        // Takes archived rows out. Keys never counted are skipped, and a key seen again in the overlap was already
+        // taken out.
+        private void remove(List<Integer> keys) {
+            int first = Integer.MAX_VALUE;
+            int count = 0;
+            for (int key : keys) {
+                if (counted(key) && removed.add(key)) {
+                    first = Math.min(first, key);
+                    count++;
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            rowCount = Math.max(0, rowCount - count);
+            invalidateFrom(first);
+            fireTableDataChanged();
+        }
+
+        // The rows from key on have shifted, so every cached page and page boundary from there is dropped; those
+        // pages are refetched as they are painted.
+        private void invalidateFrom(int key) {
+            pages.values().removeIf(rows -> rows.length == 0 || (Integer) rows[rows.length - 1][0] >= key);
+            lastKeys.values().removeIf(last -> last >= key);
+        }
+
+        // A new key above every counted one is appended; any other new key (a late commit, or a clinic that sorts
+        // before the last one) shifts the rows after it, like a removal in reverse.
+        private void applyChanges(List<Object[]> changed) {
+            int firstNew = rowCount;
+            int firstInserted = Integer.MAX_VALUE;
+            for (Object[] row : changed) {
+                int key = (Integer) row[0];
+                if (key > maxKey) {
+                    append(row);
+                    maxKey = key;
+                    count(key);
+                } else if (!counted(key)) {
+                    rowCount++;
+                    firstNew++;
+                    count(key);
+                    firstInserted = Math.min(firstInserted, key);
+                } else {
+                    int index = replace(key, row);
+                    if (index >= 0 && index < firstNew) {
+                        fireTableRowsUpdated(index, index);
+                    }
+                }
+            }
+            if (firstInserted != Integer.MAX_VALUE) {
+                invalidateFrom(firstInserted);
+                fireTableDataChanged();
+            } else if (rowCount > firstNew) {
+                fireTableRowsInserted(firstNew, rowCount - 1);
+            }
+        }
+
+        private void append(Object[] row) {
+            int page = rowCount / pageSize;
+            int offset = rowCount % pageSize;
+            rowCount++;
+            Object[][] rows = pages.get(page);
+            if (rows != null && rows.length == offset) {
+                Object[][] grown = Arrays.copyOf(rows, offset + 1);
+                grown[offset] = row;
+                pages.put(page, grown);
+                lastKeys.put(page, (Integer) row[0]);
+            } else {
+                // The page is not cached (or not in step): its recorded last key no longer ends it.
+                lastKeys.remove(page);
+            }
+        }
+
+        // Returns the row index of key if it sits on a cached page, otherwise -1.
+        private int replace(int key, Object[] row) {
+            for (Map.Entry<Integer, Object[][]> entry : pages.entrySet()) {
+                Object[][] rows = entry.getValue();
+                if (rows.length == 0 || (Integer) rows[0][0] > key || (Integer) rows[rows.length - 1][0] < key) {
+                    continue;
+                }
+                int lo = 0, hi = rows.length - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int midKey = (Integer) rows[mid][0];
+                    if (midKey < key) {
+                        lo = mid + 1;
+                    } else if (midKey > key) {
+                        hi = mid - 1;
+                    } else {
+                        rows[mid] = row;
+                        return entry.getKey() * pageSize + mid;
+                    }
+                }
+                return -1;
+            }
+            return -1;
+        }
+
+        @Override
+        public int getRowCount() { return rowCount; }
+
+        @Override
+        public int getColumnCount() { return columnNames.length; }
+
+        @Override
+        public String getColumnName(int column) { return columnNames[column]; }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            int page = rowIndex / pageSize;
+            Object[][] rows = pages.get(page);
+            if (rows == null) {
+                requestPage(page);
+                return null;
+            }
+            int offset = rowIndex % pageSize;
+            return offset < rows.length ? rows[offset][columnIndex] : null;
+        }
+
+        private void requestPage(int page) {
+            if (failed || !loading.add(page)) {
+                return;
+            }
+            Map.Entry<Integer, Integer> known = page == 0 ? null : lastKeys.floorEntry(page - 1);
+            int anchorPage = known == null ? -1 : known.getKey();
+            int anchorKey = known == null ? -1 : known.getValue();
+            int skipped = page - anchorPage - 1;
+            DataAccess.onSwing(owner, () -> Metrics.record(table + ".page", () -> {
+                Map<Integer, Connection> open = new HashMap<>();
+                try {
+                    int[] passed = new int[0];
+                    int after = anchorKey;
+                    if (skipped > 0) {
+                        // No anchor for the previous page yet (the user jumped ahead): walk the key index from the
+                        // nearest known page boundary, remembering every boundary passed.
+                        passed = Metrics.record(table + ".seek", () -> boundariesAfter(open, anchorKey, skipped));
+                        after = passed.length < skipped ? Integer.MAX_VALUE : passed[skipped - 1];
+                    }
+                    return new PageLoad(passed, fetchPage(open, after));
+                } finally {
+                    for (Connection conn : open.values()) {
+                        conn.close();
+                    }
+                }
+            }), load -> {
+                loading.remove(page);
+                for (int i = 0; i < load.passed().length; i++) {
+                    lastKeys.put(anchorPage + 1 + i, load.passed()[i]);
+                }
+                Object[][] rows = load.rows();
+                pages.put(page, rows);
+                if (rows.length > 0) {
+                    lastKeys.put(page, (Integer) rows[rows.length - 1][0]);
+                    int first = page * pageSize;
+                    fireTableRowsUpdated(first, Math.min(rowCount, first + rows.length) - 1);
+                }
+            }, e -> {
+                loading.remove(page);
+                fail(e);
+            });
+        }
+
+        private record PageLoad(int[] passed, Object[][] rows) {}
+
+        // The clinics that can hold keys above after, in key order. Ids are never negative, so -1 means the start.
+        private List<ShardMap.Shard> shardsAfter(int after) {
+            int clinic = after < 0 ? 0 : ShardMap.clinicOf(after);
+            return shards.shards().stream().filter(shard -> shard.clinic() >= clinic).toList();
+        }
+
+        // One connection per clinic for the length of a page request, opened as the walk reaches the clinic.
+        private Connection connection(Map<Integer, Connection> open, ShardMap.Shard shard) throws SQLException {
+            Connection conn = open.get(shard.clinic());
+            if (conn == null) {
+                conn = shards.on(shard, source::getConnection);
+                open.put(shard.clinic(), conn);
+            }
+            return conn;
+        }
+
+        // Last keys of up to count full pages after the key after (-1: from the start), one keyset range over the
+        // key index per page and clinic it spans. Stops early at a page that is not full, since the table ends
+        // there. Each boundary found is kept in lastKeys, so no stretch of the index is walked twice while the
+        // window is open.
+        private int[] boundariesAfter(Map<Integer, Connection> open, int after, int count) throws SQLException {
+            String sql = "SELECT COUNT(*), MAX(" + keyColumn + ") FROM (SELECT " + keyColumn + " FROM " + table
+                    + " WHERE " + keyColumn + " > ? ORDER BY " + keyColumn + " LIMIT ?) page";
+            int[] keys = new int[count];
+            int last = after;
+            for (int p = 0; p < count; p++) {
+                int needed = pageSize;
+                for (ShardMap.Shard shard : shardsAfter(last)) {
+                    try (PreparedStatement stmt = connection(open, shard).prepareStatement(sql)) {
+                        stmt.setInt(1, last);
+                        stmt.setInt(2, needed);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            rs.next();
+                            if (rs.getInt(1) > 0) {
+                                needed -= rs.getInt(1);
+                                last = rs.getInt(2);
+                            }
+                        }
+                    }
+                    if (needed == 0) {
+                        break;
+                    }
+                }
+                if (needed > 0) {
+                    return Arrays.copyOf(keys, p);
+                }
+                keys[p] = last;
+            }
+            return keys;
+        }
+
+        private Object[][] fetchPage(Map<Integer, Connection> open, int after) throws SQLException {
+            String sql = "SELECT " + selectList + " FROM " + table + " WHERE " + keyColumn + " > ? ORDER BY " + keyColumn + " LIMIT ?";
+            List<Object[]> rows = new ArrayList<>(pageSize);
+            for (ShardMap.Shard shard : shardsAfter(after)) {
+                try (PreparedStatement stmt = connection(open, shard).prepareStatement(sql)) {
+                    stmt.setInt(1, after);
+                    stmt.setInt(2, pageSize - rows.size());
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            rows.add(mapper.map(rs));
+                        }
+                    }
+                }
+                if (rows.size() == pageSize) {
+                    break;
+                }
+            }
+            return rows.toArray(new Object[0][]);
+        }
+
+        private void fail(Exception e) {
+            if (!failed) {
+                failed = true;
+                onError.accept(e);
+            }
+        }
+    }
+
+    // --- Utility: Schema Migrations ---
+    interface MigrationStep {
+        void apply(Statement stmt) throws SQLException;
+    }
+
+    record Migration(int version, String description, MigrationStep step) {}
+
+    // Applies pending migrations in version order and records each one in schema_version. MySQL DDL is not
+    // transactional, so steps must be safe to re-run if a launch dies half way through one.
+    static class SchemaMigrator {
+        private static final String LOCK_NAME = "hospital_schema_migration";
+        private final ConnectionSource source;
+        private final List<Migration> migrations;
+
+        SchemaMigrator(ConnectionSource source, List<Migration> migrations) {
+            this.source = source;
+            this.migrations = migrations;
+        }
+
+        // Returns the number of migrations applied; 0 means the schema was already current.
+        int migrate() throws SQLException {
+            int latest = migrations.get(migrations.size() - 1).version();
+            try (Connection conn = source.getConnection(); Statement stmt = conn.createStatement()) {
+                if (currentVersion(stmt) >= latest) {
+                    return 0;
+                }
+                // Serialize launches that find the schema out of date at the same time.
+                try (ResultSet rs = stmt.executeQuery("SELECT GET_LOCK('" + LOCK_NAME + "', 60)")) {
+                    if (!rs.next() || rs.getInt(1) != 1) {
+                        throw new SQLException("Timed out waiting for the schema migration lock");
+                    }
+                }
+                try {
+                    stmt.executeUpdate("""
+                        CREATE TABLE IF NOT EXISTS schema_version (
+                            version INT PRIMARY KEY,
+                            description VARCHAR(200),
+                            applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                        )
+                    """);
+                    int current = currentVersion(stmt);
+                    int applied = 0;
+                    for (Migration migration : migrations) {
+                        if (migration.version() <= current) {
+                            continue;
+                        }
+                        migration.step().apply(stmt);
+                        try (PreparedStatement record = conn.prepareStatement(
+                                "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                            record.setInt(1, migration.version());
+                            record.setString(2, migration.description());
+                            record.executeUpdate();
+                        }
+                        applied++;
+                    }
+                    return applied;
+                } finally {
+                    stmt.executeQuery("SELECT RELEASE_LOCK('" + LOCK_NAME + "')").close();
+                }
+            }
+        }
+
+        private static int currentVersion(Statement stmt) throws SQLException {
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = 'schema_version'")) {
+                rs.next();
+                if (rs.getInt(1) == 0) {
+                    return 0;
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+
+        // MySQL has no CREATE INDEX IF NOT EXISTS.
+        static void createIndex(Statement stmt, String table, String index, String columns) throws SQLException {
+            createIndex(stmt, table, index, columns, false);
+        }
+
+        static void createIndex(Statement stmt, String table, String index, String columns, boolean unique) throws SQLException {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM information_schema.statistics"
+                    + " WHERE table_schema = DATABASE() AND table_name = '" + table + "' AND index_name = '" + index + "'")) {
+                rs.next();
+                if (rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+            stmt.executeUpdate("CREATE " + (unique ? "UNIQUE " : "") + "INDEX " + index + " ON " + table + " (" + columns + ")");
+        }
+
+        // Nor ADD COLUMN IF NOT EXISTS.
+        static void addColumn(Statement stmt, String table, String column, String definition) throws SQLException {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM information_schema.columns"
+                    + " WHERE table_schema = DATABASE() AND table_name = '" + table + "' AND column_name = '" + column + "'")) {
+                rs.next();
+                if (rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+            stmt.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+
+    // --- Utility: Appointment Slot Scheduler ---
+    // Each doctor's working day (hospital.slots.dayStart to hospital.slots.dayEnd) is cut into slot_minutes slots
+    // held as a bitmap per doctor and date. Bookers claim a bit with CAS before inserting, so concurrent clerks in
+    // this process never race to the database for the same slot; the unique (doctor_id, slot_start) index is
+    // the guard against other processes.
+    static class SlotScheduler {
+        private static final int DUPLICATE_KEY = 1062;
+        private record DayKey(int doctorId, LocalDate date) {}
+
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final AppointmentAnalytics analytics;
+        private final AppointmentRepository appointments = new AppointmentRepository();
+        private final LocalTime dayStart = LocalTime.parse(System.getProperty("hospital.slots.dayStart", "08:00"));
+        private final LocalTime dayEnd = LocalTime.parse(System.getProperty("hospital.slots.dayEnd", "17:00"));
+        private final ConcurrentHashMap<DayKey, DaySlots> days = new ConcurrentHashMap<>();
+        private final CopyOnWriteArrayList<SlotListener> listeners = new CopyOnWriteArrayList<>();
+
+        // Told after slots of a doctor's day may have been claimed or released in this process.
+        interface SlotListener {
+            void slotsChanged(int doctorId, LocalDate date);
+        }
+
+        SlotScheduler(ConnectionSource source) {
+            this(source, SHARDS, null);
+        }
+
+        // analytics may be null, in which case bookings do not maintain the rollups. Each doctor's days are read
+        // and booked in that doctor's clinic database.
+        SlotScheduler(ConnectionSource source, ShardMap shards, AppointmentAnalytics analytics) {
+            if (!dayEnd.isAfter(dayStart)) {
+                throw new IllegalArgumentException("hospital.slots.dayEnd (" + dayEnd + ") must be after hospital.slots.dayStart ("
+                        + dayStart + ")");
+            }
+            this.source = source;
+            this.shards = shards;
+            this.analytics = analytics;
+        }
+
+        LocalDateTime book(int patientId, int doctorId, LocalDateTime slotStart) throws SQLException {
+            DaySlots day = day(doctorId, slotStart.toLocalDate());
+            int slot = day.indexOf(slotStart.toLocalTime());
+            if (slot < 0) {
+                throw new SlotUnavailableException(slotStart + " is not a slot start for this doctor ("
+                        + day.slotMinutes + "-minute slots from " + dayStart + " to " + dayEnd + ")");
+            }
+            if (!day.claim(slot)) {
+                throw new SlotUnavailableException("The " + slotStart.toLocalTime() + " slot on " + slotStart.toLocalDate() + " is already booked");
+            }
+            try {
+                insert(day, slot, patientId, doctorId, slotStart);
+            } finally {
+                changed(doctorId, slotStart.toLocalDate());
+            }
+            return slotStart;
+        }
+
+        LocalDateTime bookFirstFree(int patientId, int doctorId, LocalDate date) throws SQLException {
+            DaySlots day = day(doctorId, date);
+            try {
+                for (int slot = day.firstFree(0); slot >= 0; slot = day.firstFree(slot + 1)) {
+                    if (!day.claim(slot)) {
+                        continue;
+                    }
+                    LocalDateTime slotStart = day.startOf(slot);
+                    try {
+                        insert(day, slot, patientId, doctorId, slotStart);
+                        return slotStart;
+                    } catch (SlotUnavailableException e) {
+                        // Booked from another terminal since we loaded the day; try the next one.
+                    }
+                }
+            } finally {
+                changed(doctorId, date);
+            }
+            throw new SlotUnavailableException("No free slots left on " + date);
+        }
+
+        // Frees a slot whose appointment was cancelled, if that day is in memory.
+        void released(int doctorId, LocalDateTime slotStart) {
+            DaySlots day = days.get(new DayKey(doctorId, slotStart.toLocalDate()));
+            int slot = day == null ? -1 : day.indexOf(slotStart.toLocalTime());
+            if (slot >= 0) {
+                day.release(slot);
+                changed(doctorId, slotStart.toLocalDate());
+            }
+        }
+
+        void addListener(SlotListener listener) {
+            listeners.add(listener);
+        }
+
+        private void changed(int doctorId, LocalDate date) {
+            listeners.forEach(listener -> listener.slotsChanged(doctorId, date));
+        }
+
+        List<LocalTime> freeSlots(int doctorId, LocalDate date) throws SQLException {
+            DaySlots day = day(doctorId, date);
+            List<LocalTime> free = new ArrayList<>();
+            for (int slot = day.firstFree(0); slot >= 0; slot = day.firstFree(slot + 1)) {
+                free.add(day.startOf(slot).toLocalTime());
+            }
+            return free;
+        }
+
+        private void insert(DaySlots day, int slot, int patientId, int doctorId, LocalDateTime slotStart) throws SQLException {
+            try {
+                Metrics.record("appointment.insert", () -> {
+                    try (Connection conn = shards.on(doctorId, source::getConnection)) {
+                        conn.setAutoCommit(analytics == null);
+                        if (analytics == null) {
+                            appointments.insert(conn, patientId, doctorId, slotStart, null);
+                            return null;
+                        }
+                        AppointmentAnalytics.Cohort cohort = AppointmentAnalytics.cohortOf(conn, patientId);
+                        appointments.insert(conn, patientId, doctorId, slotStart, cohort);
+                        analytics.commit(conn, analytics.booked(conn, cohort, doctorId, slotStart.toLocalDate(), "Scheduled"));
+                        return null;
+                    }
+                }, c -> 1);
+            } catch (SQLException e) {
+                // Every failure gives the bit back, a duplicate key included: the other process's booking may be
+                // cancelled there without this one hearing of it, and the unique index still turns a retry away.
+                day.release(slot);
+                if (e.getErrorCode() == DUPLICATE_KEY) {
+                    throw new SlotUnavailableException("The " + slotStart.toLocalTime() + " slot on " + slotStart.toLocalDate() + " is already booked");
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                day.release(slot);
+                throw e;
+            }
+        }
+
+        // Loads a doctor's day from the database the first time it is needed.
+        DaySlots day(int doctorId, LocalDate date) throws SQLException {
+            DayKey key = new DayKey(doctorId, date);
+            DaySlots day = days.get(key);
+            if (day != null) {
+                return day;
+            }
+            LocalDate today = LocalDate.now();
+            days.keySet().removeIf(k -> k.date().isBefore(today));
+            day = Metrics.record("appointment.dayLoad", () -> loadDay(doctorId, date));
+            DaySlots raced = days.putIfAbsent(key, day);
+            return raced != null ? raced : day;
+        }
+
+        private DaySlots loadDay(int doctorId, LocalDate date) throws SQLException {
+            try (Connection conn = shards.on(doctorId, source::getConnection)) {
+                int slotMinutes;
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT slot_minutes FROM doctor WHERE doctor_id = ?")) {
+                    stmt.setInt(1, doctorId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Unknown doctor " + doctorId);
+                        }
+                        slotMinutes = rs.getInt(1);
+                    }
+                }
+                DaySlots day = newDay(date, slotMinutes);
+                for (LocalDateTime booked : appointments.bookedSlots(conn, doctorId, date)) {
+                    int slot = day.indexOf(booked.toLocalTime());
+                    if (slot >= 0) {
+                        day.claim(slot);
+                    }
+                }
+                return day;
+            }
+        }
+
+        // Loads every doctor's days in [from, to] with one query, skipping days that are already in memory.
+        void preload(Map<Integer, Integer> slotMinutesByDoctor, LocalDate from, LocalDate to) throws SQLException {
+            Map<DayKey, DaySlots> loaded = new HashMap<>();
+            for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+                for (Map.Entry<Integer, Integer> doctor : slotMinutesByDoctor.entrySet()) {
+                    DayKey key = new DayKey(doctor.getKey(), date);
+                    if (!days.containsKey(key)) {
+                        loaded.put(key, newDay(date, doctor.getValue()));
+                    }
+                }
+            }
+            if (loaded.isEmpty()) {
+                return;
+            }
+            // Clinics hold disjoint doctors, so their scans claim bits in disjoint days and can run side by side.
+            Metrics.record("appointment.preload", () -> shards.fanOut(shard -> {
+                try (Connection conn = source.getConnection();
+                     PreparedStatement stmt = conn.prepareStatement("SELECT doctor_id, slot_start FROM appointment"
+                             + " WHERE appointment_date BETWEEN ? AND ? AND slot_start IS NOT NULL")) {
+                    stmt.setDate(1, Date.valueOf(from));
+                    stmt.setDate(2, Date.valueOf(to));
+                    int rows = 0;
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            rows++;
+                            LocalDateTime start = rs.getTimestamp(2).toLocalDateTime();
+                            DaySlots day = loaded.get(new DayKey(rs.getInt(1), start.toLocalDate()));
+                            int slot = day == null ? -1 : day.indexOf(start.toLocalTime());
+                            if (slot >= 0) {
+                                day.claim(slot);
+                            }
+                        }
+                    }
+                    return rows;
+                }
+            }), rows -> rows.stream().mapToLong(Integer::longValue).sum());
+            loaded.forEach(days::putIfAbsent);
+        }
+
+        private DaySlots newDay(LocalDate date, int slotMinutes) {
+            return new DaySlots(date.atTime(dayStart), slotMinutes,
+                    (int) (Duration.between(dayStart, dayEnd).toMinutes() / DaySlots.checkSlotMinutes(slotMinutes)));
+        }
+
+        // One bit per slot; a set bit means booked.
+        static final class DaySlots {
+            final LocalDateTime first;
+            final int slotMinutes;
+            final int slots;
+            private final AtomicLongArray bits;
+
+            DaySlots(LocalDateTime first, int slotMinutes, int slots) {
+                if (slots < 0) {
+                    throw new IllegalArgumentException("Negative slot count: " + slots);
+                }
+                this.first = first;
+                this.slotMinutes = checkSlotMinutes(slotMinutes);
+                this.slots = slots;
+                this.bits = new AtomicLongArray((slots + 63) / 64);
+            }
+
+            static int checkSlotMinutes(int slotMinutes) {
+                if (slotMinutes < 1) {
+                    throw new IllegalArgumentException("slot_minutes must be at least 1, was " + slotMinutes);
+                }
+                return slotMinutes;
+            }
+
+            int indexOf(LocalTime time) {
+                long minutes = Duration.between(first.toLocalTime(), time).toMinutes();
+                if (minutes < 0 || minutes % slotMinutes != 0 || minutes / slotMinutes >= slots) {
+                    return -1;
+                }
+                return (int) (minutes / slotMinutes);
+            }
+
+            LocalDateTime startOf(int slot) {
+                return first.plusMinutes((long) slot * slotMinutes);
+            }
+
+            boolean claim(int slot) {
+                int word = slot >>> 6;
+                long mask = 1L << slot;
+                while (true) {
+                    long current = bits.get(word);
+                    if ((current & mask) != 0) {
+                        return false;
+                    }
+                    if (bits.compareAndSet(word, current, current | mask)) {
+                        return true;
+                    }
+                }
+            }
+
+            void release(int slot) {
+                int word = slot >>> 6;
+                long mask = 1L << slot;
+                while (true) {
+                    long current = bits.get(word);
+                    if (bits.compareAndSet(word, current, current & ~mask)) {
+                        return;
+                    }
+                }
+            }
+
+            boolean isFree(int slot) {
+                return (bits.get(slot >>> 6) & (1L << slot)) == 0;
+            }
+
+            int booked() {
+                int booked = 0;
+                for (int word = 0; word < bits.length(); word++) {
+                    booked += Long.bitCount(bits.get(word));
+                }
+                return booked;
+            }
+
+            // Index of the first free slot at or after from, or -1.
+            int firstFree(int from) {
+                for (int word = from >>> 6; word < bits.length(); word++) {
+                    long free = ~bits.get(word);
+                    if (word == from >>> 6) {
+                        free &= -1L << from;
+                    }
+                    if (free != 0) {
+                        int slot = (word << 6) + Long.numberOfTrailingZeros(free);
+                        return slot < slots ? slot : -1;
+                    }
+                }
+                return -1;
+            }
+        }
+    }
+
+    // --- Utility: Availability Index ---
+    // Answers "first N free slots for a specialization after T" from the SlotScheduler bitmaps, so a booking made
+    // through the scheduler is visible here immediately. Doctors are reloaded whenever the roster is invalidated;
+    // appointment days are bulk-loaded hospital.availability.horizonDays at a time.
+    static class AvailabilityIndex {
+        record FreeSlot(int doctorId, String doctorName, LocalDateTime start) {
+            @Override
+            public String toString() {
+                return start.toLocalDate() + " " + start.toLocalTime() + "  " + doctorId + ": " + doctorName;
+            }
+        }
+
+        record Doctor(int id, String name, int slotMinutes) {}
+
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final SlotScheduler scheduler;
+        private final DoctorRoster roster;
+        private final int horizonDays = Integer.getInteger("hospital.availability.horizonDays", 14);
+        private volatile Map<String, List<Doctor>> bySpecialization;
+        private volatile long rosterGeneration = -1;
+        private volatile LocalDate loadedThrough = LocalDate.MIN;
+
+        AvailabilityIndex(ConnectionSource source, ShardMap shards, SlotScheduler scheduler, DoctorRoster roster) {
+            this.source = source;
+            this.shards = shards;
+            this.scheduler = scheduler;
+            this.roster = roster;
+        }
+
+        // The result holds at most n slots, and no more than the doctors have in the horizon, so n is not
+        // used to presize anything.
+        List<FreeSlot> firstFree(String specialization, LocalDateTime after, int n) throws SQLException {
+            if (n < 1) {
+                throw new IllegalArgumentException("Ask for at least one slot, not " + n);
+            }
+            List<Doctor> doctors = doctors().getOrDefault(specialization, List.of());
+            List<FreeSlot> found = new ArrayList<>();
+            if (doctors.isEmpty()) {
+                return found;
+            }
+            LocalDate last = after.toLocalDate().plusDays(horizonDays);
+            ensureLoaded(after.toLocalDate(), last);
+            for (LocalDate date = after.toLocalDate(); !date.isAfter(last) && found.size() < n; date = date.plusDays(1)) {
+                // Up to n candidates per doctor for this day, then keep the earliest overall.
+                List<FreeSlot> day = new ArrayList<>();
+                for (Doctor doctor : doctors) {
+                    SlotScheduler.DaySlots slots = scheduler.day(doctor.id(), date);
+                    int from = date.equals(after.toLocalDate()) ? firstSlotAtOrAfter(slots, after.toLocalTime()) : 0;
+                    int taken = 0;
+                    for (int slot = slots.firstFree(from); slot >= 0 && taken < n; slot = slots.firstFree(slot + 1)) {
+                        day.add(new FreeSlot(doctor.id(), doctor.name(), slots.startOf(slot)));
+                        taken++;
+                    }
+                }
+                day.sort(Comparator.comparing(FreeSlot::start).thenComparing(FreeSlot::doctorId));
+                found.addAll(day.subList(0, Math.min(day.size(), n - found.size())));
+            }
+            return found;
+        }
+
+        // Available doctors with this specialization in one clinic, with their days for date in the scheduler.
+        List<Doctor> doctors(String specialization, int clinic, LocalDate date) throws SQLException {
+            List<Doctor> doctors = doctors().getOrDefault(specialization, List.of()).stream()
+                    .filter(doctor -> ShardMap.clinicOf(doctor.id()) == clinic)
+                    .toList();
+            Map<Integer, Integer> slotMinutes = new HashMap<>();
+            doctors.forEach(doctor -> slotMinutes.put(doctor.id(), doctor.slotMinutes()));
+            scheduler.preload(slotMinutes, date, date);
+            return doctors;
+        }
+
+        private static int firstSlotAtOrAfter(SlotScheduler.DaySlots slots, LocalTime time) {
+            long minutes = Duration.between(slots.first.toLocalTime(), time).toMinutes();
+            return minutes <= 0 ? 0 : (int) Math.min(slots.slots, (minutes + slots.slotMinutes - 1) / slots.slotMinutes);
+        }
+
+        private Map<String, List<Doctor>> doctors() throws SQLException {
+            long generation = roster.generation();
+            Map<String, List<Doctor>> current = bySpecialization;
+            if (current != null && generation == rosterGeneration) {
+                return current;
+            }
+            Map<String, List<Doctor>> loaded = new HashMap<>();
+            List<Map<String, List<Doctor>>> byClinic = Metrics.record("doctor.availabilityLoad", () -> shards.fanOut(shard -> {
+                Map<String, List<Doctor>> clinic = new HashMap<>();
+                try (Connection conn = source.getConnection();
+                     Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery(
+                             "SELECT doctor_id, name, specialization, slot_minutes FROM doctor WHERE availability = TRUE AND slot_minutes > 0")) {
+                    while (rs.next()) {
+                        clinic.computeIfAbsent(rs.getString("specialization"), k -> new ArrayList<>())
+                                .add(new Doctor(rs.getInt("doctor_id"), rs.getString("name"), rs.getInt("slot_minutes")));
+                    }
+                }
+                return clinic;
+            }), clinics -> clinics.stream().flatMap(clinic -> clinic.values().stream()).mapToLong(List::size).sum());
+            byClinic.forEach(clinic -> clinic.forEach((specialization, doctors) ->
+                    loaded.computeIfAbsent(specialization, k -> new ArrayList<>()).addAll(doctors)));
+            bySpecialization = loaded;
+            rosterGeneration = generation;
+            loadedThrough = LocalDate.MIN;
+            return loaded;
+        }
+
+        private void ensureLoaded(LocalDate from, LocalDate to) throws SQLException {
+            if (!to.isAfter(loadedThrough)) {
+                return;
+            }
+            Map<Integer, Integer> slotMinutes = new HashMap<>();
+            bySpecialization.values().forEach(list -> list.forEach(d -> slotMinutes.put(d.id(), d.slotMinutes())));
+            scheduler.preload(slotMinutes, from, to);
+            loadedThrough = to;
+        }
+    }
+
+    // --- Utility: Least-Loaded Doctor Assignment ---
+    // Picks the available doctor with the fewest booked slots on a date, so bookings spread over a clinic's
+    // dentists instead of piling onto the first names in the list. One ordered set per clinic, specialization and
+    // date holds each doctor that still has a free slot, keyed by booked slots (read from the SlotScheduler
+    // bitmap, so it counts every booking and cancellation made here) plus picks still in flight. Picking and
+    // re-keying are O(log n); the scheduler reports every claim and release, and the sets are rebuilt when the
+    // roster is invalidated. Like the scheduler, it only learns of another process's bookings when it finds their
+    // slots taken.
+    static final class DoctorLoadBalancer {
+        record Assignment(int doctorId, String doctorName, LocalDateTime slot) {}
+
+        private record QueueKey(int clinic, String specialization, LocalDate date) {}
+        private record DoctorDay(int doctorId, LocalDate date) {}
+        private record Load(int booked, int doctorId) {}
+
+        private static final Comparator<Load> LEAST_LOADED = Comparator.comparingInt(Load::booked).thenComparingInt(Load::doctorId);
+
+        private final SlotScheduler scheduler;
+        private final AvailabilityIndex availability;
+        private final DoctorRoster roster;
+        private final ConcurrentHashMap<QueueKey, DayQueue> queues = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<DoctorDay, DayQueue> byDoctorDay = new ConcurrentHashMap<>();
+        private volatile long rosterGeneration = -1;
+
+        DoctorLoadBalancer(SlotScheduler scheduler, AvailabilityIndex availability, DoctorRoster roster) {
+            this.scheduler = scheduler;
+            this.availability = availability;
+            this.roster = roster;
+            scheduler.addListener((doctorId, date) -> {
+                DayQueue queue = byDoctorDay.get(new DoctorDay(doctorId, date));
+                if (queue != null) {
+                    queue.rekey(doctorId);
+                }
+            });
+        }
+
+        // The least-loaded doctor on date without booking anything, e.g. to register a patient with.
+        AvailabilityIndex.Doctor leastLoaded(int clinic, String specialization, LocalDate date) throws SQLException {
+            DayQueue.Entry entry = queue(clinic, specialization, date).peek();
+            if (entry == null) {
+                throw new SlotUnavailableException("No " + specialization + " has a free slot on " + date);
+            }
+            return entry.doctor;
+        }
+
+        // Books the first free slot on date with the least-loaded doctor. Concurrent callers each see the
+        // others' picks, so a burst of bookings fans out over the doctors rather than all landing on one.
+        Assignment book(int patientId, int clinic, String specialization, LocalDate date) throws SQLException {
+            DayQueue queue = queue(clinic, specialization, date);
+            while (true) {
+                DayQueue.Entry entry = queue.reserve();
+                if (entry == null) {
+                    throw new SlotUnavailableException("No " + specialization + " has a free slot on " + date);
+                }
+                try {
+                    LocalDateTime slot = scheduler.bookFirstFree(patientId, entry.doctor.id(), date);
+                    return new Assignment(entry.doctor.id(), entry.doctor.name(), slot);
+                } catch (SlotUnavailableException e) {
+                    // Filled up by other terminals; the doctor has left the queue, so try the next one.
+                } finally {
+                    queue.unreserve(entry);
+                }
+            }
+        }
+
+        private DayQueue queue(int clinic, String specialization, LocalDate date) throws SQLException {
+            long generation = roster.generation();
+            if (generation != rosterGeneration) {
+                queues.clear();
+                byDoctorDay.clear();
+                rosterGeneration = generation;
+            }
+            QueueKey key = new QueueKey(clinic, specialization, date);
+            DayQueue queue = queues.get(key);
+            if (queue != null) {
+                return queue;
+            }
+            LocalDate today = LocalDate.now();
+            queues.keySet().removeIf(k -> k.date().isBefore(today));
+            byDoctorDay.keySet().removeIf(k -> k.date().isBefore(today));
+            queue = new DayQueue();
+            for (AvailabilityIndex.Doctor doctor : availability.doctors(specialization, clinic, date)) {
+                queue.add(doctor, scheduler.day(doctor.id(), date));
+            }
+            DayQueue raced = queues.putIfAbsent(key, queue);
+            if (raced != null) {
+                return raced;
+            }
+            for (Integer doctorId : queue.doctors.keySet()) {
+                byDoctorDay.put(new DoctorDay(doctorId, date), queue);
+            }
+            return queue;
+        }
+
+        private static final class DayQueue {
+            private static final class Entry {
+                final AvailabilityIndex.Doctor doctor;
+                final SlotScheduler.DaySlots slots;
+                int reserved;
+                Load queued;
+
+                Entry(AvailabilityIndex.Doctor doctor, SlotScheduler.DaySlots slots) {
+                    this.doctor = doctor;
+                    this.slots = slots;
+                }
+            }
+
+            private static final Load FIRST = new Load(Integer.MIN_VALUE, Integer.MIN_VALUE);
+
+            final ConcurrentSkipListSet<Load> order = new ConcurrentSkipListSet<>(LEAST_LOADED);
+            final ConcurrentHashMap<Integer, Entry> doctors = new ConcurrentHashMap<>();
+
+            void add(AvailabilityIndex.Doctor doctor, SlotScheduler.DaySlots slots) {
+                Entry entry = new Entry(doctor, slots);
+                doctors.put(doctor.id(), entry);
+                synchronized (entry) {
+                    requeue(entry);
+                }
+            }
+
+            // The least-loaded doctor; null when no doctor has a free slot.
+            Entry peek() {
+                Load first = order.ceiling(FIRST);
+                return first == null ? null : doctors.get(first.doctorId());
+            }
+
+            // Counts a pick against the least-loaded doctor; null when no doctor has a free slot.
+            Entry reserve() {
+                while (true) {
+                    Load first = order.ceiling(FIRST);
+                    if (first == null) {
+                        return null;
+                    }
+                    Entry entry = doctors.get(first.doctorId());
+                    synchronized (entry) {
+                        // Re-keyed since we looked; look again.
+                        if (entry.queued != first) {
+                            continue;
+                        }
+                        entry.reserved++;
+                        requeue(entry);
+                        return entry;
+                    }
+                }
+            }
+
+            void unreserve(Entry entry) {
+                synchronized (entry) {
+                    entry.reserved--;
+                    requeue(entry);
+                }
+            }
+
+            void rekey(int doctorId) {
+                Entry entry = doctors.get(doctorId);
+                if (entry != null) {
+                    synchronized (entry) {
+                        requeue(entry);
+                    }
+                }
+            }
+
+            // Caller holds the entry's lock. A doctor with no free slot left drops out until one is released.
+            private void requeue(Entry entry) {
+                if (entry.queued != null) {
+                    order.remove(entry.queued);
+                }
+                entry.queued = entry.slots.firstFree(0) < 0 ? null : new Load(entry.slots.booked() + entry.reserved, entry.doctor.id());
+                if (entry.queued != null) {
+                    order.add(entry.queued);
+                }
+            }
+        }
+    }
+
+    static class SlotUnavailableException extends SQLException {
+        SlotUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    // --- Utility: Appointment Analytics ---
+    // Rollup counters for the dashboard: appointments per doctor, day and status, and per patient age band, gender
+    // and status. Every booking and status change adjusts the summary tables in its own transaction (so they never
+    // drift from appointment) and, once committed, the in-memory copy. The copy is reloaded from the summary tables
+    // at most every hospital.analytics.refreshMillis to pick up other clients; reports never scan appointment.
+    // Commits and reloads exclude each other (see commit), so a change is counted by exactly one copy.
+    static final class AppointmentAnalytics {
+        record DoctorDay(int doctorId, LocalDate day, String status) {}
+        record Mix(int ageBand, String gender, String status) {}
+        // The patient's age band and gender when the appointment was booked, stored on the appointment row.
+        record Cohort(int ageBand, String gender) {}
+
+        // Counter deltas from one committed transaction.
+        record Change(Map<DoctorDay, Integer> doctorDays, Map<Mix, Integer> mix) {}
+
+        private record Rollups(Map<DoctorDay, Long> doctorDays, Map<Mix, Long> mix) {}
+
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final long refreshNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("hospital.analytics.refreshMillis", 30_000L));
+        private volatile ConcurrentHashMap<DoctorDay, AtomicLong> doctorDays;
+        private volatile ConcurrentHashMap<Mix, AtomicLong> mix;
+        private volatile long loadedAt;
+        // Read-held from a transaction's commit until its change is applied; write-held while reloading.
+        private final ReentrantReadWriteLock commits = new ReentrantReadWriteLock();
+
+        // Each clinic keeps rollups of its own appointments; reloads add them up.
+        AppointmentAnalytics(ConnectionSource source, ShardMap shards) {
+            this.source = source;
+            this.shards = shards;
+        }
+
+        // Runs inside the caller's transaction, after the appointment row is written with the same cohort.
+        Change booked(Connection conn, Cohort cohort, int doctorId, LocalDate day, String status) throws SQLException {
+            Map<DoctorDay, Integer> days = Map.of(new DoctorDay(doctorId, day, status), 1);
+            Map<Mix, Integer> mixes = Map.of(mix(cohort, status), 1);
+            return write(conn, new Change(days, mixes));
+        }
+
+        // Moves the appointment within the cohort it was booked under. Rows from before that was stored (or booked
+        // without analytics) fall back to the patient's current record.
+        Change statusChanged(Connection conn, AppointmentRepository.Row row, String to) throws SQLException {
+            Cohort cohort = row.cohort() != null ? row.cohort() : cohortOf(conn, row.patientId());
+            Map<DoctorDay, Integer> days = Map.of(new DoctorDay(row.doctorId(), row.date(), row.status()), -1,
+                    new DoctorDay(row.doctorId(), row.date(), to), 1);
+            Map<Mix, Integer> mixes = Map.of(mix(cohort, row.status()), -1, mix(cohort, to), 1);
+            return write(conn, new Change(days, mixes));
+        }
+
+        // Commits the caller's transaction and applies its change. A reload cannot run in between, so it either
+        // reads the committed rollups after the change went into the old copy, or the change goes into the copy
+        // it loaded, never both and never neither.
+        void commit(Connection conn, Change change) throws SQLException {
+            commits.readLock().lock();
+            try {
+                conn.commit();
+                apply(change);
+            } finally {
+                commits.readLock().unlock();
+            }
+        }
+
+        // Applies a committed change to the in-memory counters.
+        private void apply(Change change) {
+            ConcurrentHashMap<DoctorDay, AtomicLong> days = doctorDays;
+            ConcurrentHashMap<Mix, AtomicLong> mixes = mix;
+            if (days == null) {
+                return; // not loaded yet; the first load reads the committed tables
+            }
+            change.doctorDays().forEach((key, delta) -> days.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta));
+            change.mix().forEach((key, delta) -> mixes.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta));
+        }
+
+        // Appointments (any status) per doctor per day in [from, to].
+        Map<Integer, Map<LocalDate, Long>> perDoctorPerDay(LocalDate from, LocalDate to) throws SQLException {
+            Map<Integer, Map<LocalDate, Long>> result = new TreeMap<>();
+            current().doctorDays().forEach((key, count) -> {
+                if (count != 0 && !key.day().isBefore(from) && !key.day().isAfter(to)) {
+                    result.computeIfAbsent(key.doctorId(), k -> new TreeMap<>()).merge(key.day(), count, Long::sum);
+                }
+            });
+            return result;
+        }
+
+        // Appointments per status in [from, to]; a status's share of the total is its rate (e.g. no-shows).
+        Map<String, Long> byStatus(LocalDate from, LocalDate to) throws SQLException {
+            Map<String, Long> result = new TreeMap<>();
+            current().doctorDays().forEach((key, count) -> {
+                if (count != 0 && !key.day().isBefore(from) && !key.day().isAfter(to)) {
+                    result.merge(key.status(), count, Long::sum);
+                }
+            });
+            return result;
+        }
+
+        double rate(String status, LocalDate from, LocalDate to) throws SQLException {
+            Map<String, Long> counts = byStatus(from, to);
+            long total = counts.values().stream().mapToLong(Long::longValue).sum();
+            return total == 0 ? 0 : (double) counts.getOrDefault(status, 0L) / total;
+        }
+
+        // Appointments (all time) per patient age band, gender and status.
+        Map<Mix, Long> patientMix() throws SQLException {
+            Map<Mix, Long> result = new TreeMap<>(Comparator.comparingInt(Mix::ageBand).thenComparing(Mix::gender)
+                    .thenComparing(Mix::status));
+            current().mix().forEach((key, count) -> {
+                if (count != 0) {
+                    result.put(key, count);
+                }
+            });
+            return result;
+        }
+
+        private Rollups current() throws SQLException {
+            if (doctorDays == null || System.nanoTime() - loadedAt > refreshNanos) {
+                reload();
+            }
+            Map<DoctorDay, Long> days = new HashMap<>();
+            doctorDays.forEach((key, count) -> days.put(key, count.get()));
+            Map<Mix, Long> mixes = new HashMap<>();
+            mix.forEach((key, count) -> mixes.put(key, count.get()));
+            return new Rollups(days, mixes);
+        }
+
+        // The connections are taken before the write lock: a committer waiting for the lock holds a pooled
+        // connection, so a reload waiting for one under the lock could stall against it.
+        private void reload() throws SQLException {
+            Map<Integer, Connection> connections = new HashMap<>();
+            try {
+                for (ShardMap.Shard shard : shards.shards()) {
+                    connections.put(shard.clinic(), shards.on(shard, source::getConnection));
+                }
+                commits.writeLock().lock();
+                try {
+                    if (doctorDays == null || System.nanoTime() - loadedAt > refreshNanos) {
+                        load(connections);
+                    }
+                } finally {
+                    commits.writeLock().unlock();
+                }
+            } finally {
+                for (Connection conn : connections.values()) {
+                    conn.close();
+                }
+            }
+        }
+
+        private void load(Map<Integer, Connection> connections) throws SQLException {
+            ConcurrentHashMap<DoctorDay, AtomicLong> days = new ConcurrentHashMap<>();
+            ConcurrentHashMap<Mix, AtomicLong> mixes = new ConcurrentHashMap<>();
+            Metrics.record("analytics.reload", () -> {
+                shards.fanOut(shard -> {
+                    try (Statement stmt = connections.get(shard.clinic()).createStatement()) {
+                        try (ResultSet rs = stmt.executeQuery("SELECT doctor_id, day, status, appointments FROM appointment_rollup")) {
+                            while (rs.next()) {
+                                days.computeIfAbsent(new DoctorDay(rs.getInt(1), rs.getDate(2).toLocalDate(), rs.getString(3)),
+                                        k -> new AtomicLong()).addAndGet(rs.getLong(4));
+                            }
+                        }
+                        try (ResultSet rs = stmt.executeQuery("SELECT age_band, gender, status, appointments FROM appointment_mix_rollup")) {
+                            while (rs.next()) {
+                                mixes.computeIfAbsent(new Mix(rs.getInt(1), rs.getString(2), rs.getString(3)),
+                                        k -> new AtomicLong()).addAndGet(rs.getLong(4));
+                            }
+                        }
+                    }
+                    return null;
+                });
+                return days.size() + mixes.size();
+            }, rows -> rows);
+            doctorDays = days;
+            mix = mixes;
+            loadedAt = System.nanoTime();
+        }
+
+        static Cohort cohortOf(Connection conn, int patientId) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT age, gender FROM patient WHERE patient_id = ?")) {
+                stmt.setInt(1, patientId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return new Cohort(-1, "Unknown");
+                    }
+                    // A missing age is band -1, as in the migration backfills.
+                    int age = rs.getInt(1);
+                    int band = rs.wasNull() ? -1 : ageBand(age);
+                    String gender = rs.getString(2);
+                    return new Cohort(band, gender == null ? "Unknown" : gender);
+                }
+            }
+        }
+
+        private static Mix mix(Cohort cohort, String status) {
+            return new Mix(cohort.ageBand(), cohort.gender(), status);
+        }
+
+        static int ageBand(int age) {
+            return age / 10 * 10;
+        }
+
+        private static Change write(Connection conn, Change change) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO appointment_rollup (doctor_id, day, status, appointments)"
+                    + " VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE appointments = appointments + VALUES(appointments)")) {
+                for (Map.Entry<DoctorDay, Integer> entry : change.doctorDays().entrySet()) {
+                    stmt.setInt(1, entry.getKey().doctorId());
+                    stmt.setDate(2, Date.valueOf(entry.getKey().day()));
+                    stmt.setString(3, entry.getKey().status());
+                    stmt.setInt(4, entry.getValue());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO appointment_mix_rollup (age_band, gender, status, appointments)"
+                    + " VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE appointments = appointments + VALUES(appointments)")) {
+                for (Map.Entry<Mix, Integer> entry : change.mix().entrySet()) {
+                    stmt.setInt(1, entry.getKey().ageBand());
+                    stmt.setString(2, entry.getKey().gender());
+                    stmt.setString(3, entry.getKey().status());
+                    stmt.setInt(4, entry.getValue());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            return change;
+        }
+    }
+
+    // --- Utility: Patient Table Feed ---
+    // Feeds an in-memory patient index (ContactIndex, NameIndex) the rows it has not seen: patient_id and one
+    // column, from every clinic, at most every refreshMillis. Ids are handed out at insert but become visible at
+    // commit, so each refresh re-reads the last overlapIds ids below the highest loaded in each clinic to pick up
+    // rows whose transaction was still open last time; the index drops the rows it already holds. The scan runs
+    // outside the index's lock: lookups keep answering from what is loaded while one thread refreshes, and only
+    // the first load makes callers wait.
+    static final class PatientFeed {
+        // One clinic's rows, in id order.
+        record Rows(int[] ids, String[] values, int size) {}
+
+        private record Batch(int clinic, int maxId, Rows rows) {}
+
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final String column, metric;
+        private final long refreshNanos;
+        private final int overlapIds;
+        private final ReentrantLock refreshing = new ReentrantLock();
+        // Highest patient_id loaded from each clinic. Only the refreshing thread touches it.
+        private final Map<Integer, Integer> maxLoadedIds = new HashMap<>();
+        // Guarded by the index's lock.
+        private volatile boolean loaded;
+        private long checkedAt;
+
+        PatientFeed(ConnectionSource source, ShardMap shards, String column, String metric, long refreshMillis, int overlapIds) {
+            this.source = source;
+            this.shards = shards;
+            this.column = column;
+            this.metric = metric;
+            this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+            this.overlapIds = overlapIds;
+        }
+
+        // Whether the first load has been applied; read under the index's lock.
+        boolean loaded() { return loaded; }
+
+        // If a refresh is due, reads the new rows, turns them into T with prepare (no lock held) and hands that
+        // to apply while holding lock, the index's monitor.
+        <T> void catchUp(Object lock, Function<List<Rows>, T> prepare, Consumer<T> apply) throws SQLException {
+            if (!stale(lock)) {
+                return;
+            }
+            if (loaded) {
+                if (!refreshing.tryLock()) {
+                    return;
+                }
+            } else {
+                refreshing.lock();
+            }
+            try {
+                if (stale(lock)) {
+                    refresh(lock, prepare, apply);
+                }
+            } finally {
+                refreshing.unlock();
+            }
+        }
+
+        private boolean stale(Object lock) {
+            synchronized (lock) {
+                return !loaded || System.nanoTime() - checkedAt >= refreshNanos;
+            }
+        }
+
+        private <T> void refresh(Object lock, Function<List<Rows>, T> prepare, Consumer<T> apply) throws SQLException {
+            long now = System.nanoTime();
+            List<Batch> batches = Metrics.record(metric, () -> shards.fanOut(shard -> scan(shard.clinic())),
+                    found -> found.stream().mapToLong(batch -> batch.rows().size()).sum());
+            T prepared = prepare.apply(batches.stream().map(Batch::rows).toList());
+            synchronized (lock) {
+                apply.accept(prepared);
+                for (Batch batch : batches) {
+                    maxLoadedIds.put(batch.clinic(), batch.maxId());
+                }
+                loaded = true;
+                checkedAt = now;
+            }
+        }
+
+        private Batch scan(int clinic) throws SQLException {
+            int[] ids = new int[1024];
+            String[] values = new String[1024];
+            int n = 0;
+            int maxId = maxLoadedIds.getOrDefault(clinic, 0);
+            try (Connection conn = source.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement("SELECT patient_id, " + column + " FROM patient WHERE patient_id > ?",
+                         ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stmt.setInt(1, Math.max(0, maxId - overlapIds));
+                stmt.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (n == ids.length) {
+                            ids = Arrays.copyOf(ids, n * 2);
+                            values = Arrays.copyOf(values, n * 2);
+                        }
+                        ids[n] = rs.getInt(1);
+                        values[n] = rs.getString(2);
+                        maxId = Math.max(maxId, ids[n++]);
+                    }
+                }
+            }
+            return new Batch(clinic, maxId, new Rows(ids, values, n));
+        }
+    }
+
+    // --- Utility: Contact Index ---
+    // contact -> patient_id as one sorted long[] of (contact << 32 | patient_id); nothing is boxed. A contact is
+    // "09" plus eight digits, so without its leading zero it is a number below 10^9, and a phone prefix is a
+    // contiguous range of the array. Loaded on first use and kept current by registerPatient; rows other clients
+    // inserted arrive through a PatientFeed (hospital.contacts.refreshMillis, hospital.contacts.overlapIds), and
+    // the entries the overlap brings again are dropped before merging.
+    static final class ContactIndex {
+        private static final int DIGITS = 10;
+
+        private final PatientFeed feed;
+        private long[] entries = new long[0];
+        private int size;
+
+        ContactIndex(ConnectionSource source, ShardMap shards) {
+            this.feed = new PatientFeed(source, shards, "contact", "patient.contactIndex",
+                    Long.getLong("hospital.contacts.refreshMillis", 5_000L), Integer.getInteger("hospital.contacts.overlapIds", 5_000));
+        }
+
+        // Patient ids registered with exactly this contact.
+        int[] exact(String contact) throws SQLException {
+            long key = key(contact);
+            if (key < 0) {
+                return new int[0];
+            }
+            catchUp();
+            synchronized (this) {
+                return ids(lowerBound(key << 32), lowerBound((key + 1) << 32), Integer.MAX_VALUE);
+            }
+        }
+
+        // Up to limit patient ids whose contact starts with prefix, in contact order.
+        int[] prefix(String prefix, int limit) throws SQLException {
+            if (prefix.isEmpty() || prefix.length() > DIGITS || !prefix.chars().allMatch(Character::isDigit)
+                    || !"09".startsWith(prefix.substring(0, Math.min(2, prefix.length())))) {
+                return new int[0];
+            }
+            catchUp();
+            long scale = (long) Math.pow(10, DIGITS - prefix.length());
+            long low = Long.parseLong(prefix) * scale;
+            long high = (Long.parseLong(prefix) + 1) * scale;
+            synchronized (this) {
+                return ids(lowerBound(low << 32), lowerBound(high << 32), limit);
+            }
+        }
+
+        // Called after a local insert commits so the new patient is findable at once.
+        synchronized void add(String contact, int patientId) {
+            long key = key(contact);
+            if (feed.loaded() && key >= 0) {
+                merge(new long[]{key << 32 | patientId}, 1);
+            }
+        }
+
+        synchronized int size() { return size; }
+
+        private void catchUp() throws SQLException {
+            feed.catchUp(this, ContactIndex::entriesOf, this::mergeNew);
+        }
+
+        // The rows' (contact << 32 | patient_id) entries, sorted; rows without a valid contact are left out.
+        private static long[] entriesOf(List<PatientFeed.Rows> batches) {
+            long[] sorted = new long[batches.stream().mapToInt(PatientFeed.Rows::size).sum()];
+            int n = 0;
+            for (PatientFeed.Rows rows : batches) {
+                for (int i = 0; i < rows.size(); i++) {
+                    long key = key(rows.values()[i]);
+                    if (key >= 0) {
+                        sorted[n++] = key << 32 | rows.ids()[i];
+                    }
+                }
+            }
+            sorted = Arrays.copyOf(sorted, n);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        // Most of the overlap is already indexed; keep only what is new so merge does not grow the array for it.
+        private void mergeNew(long[] sorted) {
+            int n = 0;
+            for (long entry : sorted) {
+                int position = lowerBound(entry);
+                if (position == size || entries[position] != entry) {
+                    sorted[n++] = entry;
+                }
+            }
+            merge(sorted, n);
+        }
+
+        // Merges n sorted entries into the index in one pass, dropping ones already present.
+        private void merge(long[] sorted, int n) {
+            if (n == 0) {
+                return;
+            }
+            long[] merged = entries.length >= size + n ? entries : new long[Math.max(1024, (size + n) * 3 / 2)];
+            int i = size - 1, j = n - 1, k = size + n - 1;
+            // Merge from the back so entries can serve as its own target.
+            while (j >= 0) {
+                if (i >= 0 && entries[i] > sorted[j]) {
+                    merged[k--] = entries[i--];
+                } else if (i >= 0 && entries[i] == sorted[j]) {
+                    merged[k--] = entries[i--];
+                    j--;
+                } else {
+                    merged[k--] = sorted[j--];
+                }
+            }
+            int duplicates = k - i;
+            if (merged != entries) {
+                System.arraycopy(entries, 0, merged, 0, i + 1);
+            }
+            if (duplicates > 0) {
+                System.arraycopy(merged, k + 1, merged, i + 1, size + n - 1 - k);
+            }
+            entries = merged;
+            size = size + n - duplicates;
+        }
+
+        private int[] ids(int from, int to, int limit) {
+            int[] ids = new int[Math.min(limit, to - from)];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = (int) entries[from + i];
+            }
+            return ids;
+        }
+
+        // First position whose entry is not less than value.
+        private int lowerBound(long value) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (entries[mid] < value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private static long key(String contact) {
+            if (contact == null || contact.length() != DIGITS || !contact.startsWith("09")) {
+                return -1;
+            }
+            long key = 0;
+            for (int i = 0; i < DIGITS; i++) {
+                char c = contact.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                key = key * 10 + (c - '0');
+            }
+            return key;
+        }
+    }
+
+    // --- Utility: Patient Name Index ---
+    // Trigram index over patient names for typo-tolerant search-as-you-type. Each name gets a dense document
+    // number; every trigram of the lower-cased, space-padded name keeps a growable int[] of document numbers.
+    // A query counts shared trigrams per document over the postings of its own trigrams only and ranks by Dice
+    // similarity, so its cost follows the popularity of the typed trigrams, not the number of patients. The end
+    // of the query is not padded: what has been typed so far matches as a prefix. Loaded on first use, kept
+    // current by registerPatient and fed other clients' rows by a PatientFeed (hospital.names.refreshMillis,
+    // hospital.names.overlapIds); rows the overlap brings again are skipped by the per-clinic bitmap.
+    static final class NameIndex {
+        private static final int MAX_QUERY = 64;
+
+        private final PatientFeed feed;
+        private final HashMap<Long, Postings> postings = new HashMap<>();
+        // Per clinic and indexed by the id's offset in the clinic's range, so sharded ids keep the bitmaps small.
+        private final Map<Integer, BitSet> indexed = new HashMap<>();
+        private int[] patientIds = new int[1024];
+        private String[] names = new String[1024];
+        private short[] trigramCounts = new short[1024];
+        private int docs;
+        private int[] scores = new int[1024];
+
+        private static final class Postings {
+            int[] docs = new int[4];
+            int size;
+
+            void add(int doc) {
+                if (size == docs.length) {
+                    docs = Arrays.copyOf(docs, size * 2);
+                }
+                docs[size++] = doc;
+            }
+        }
+
+        record Match(int patientId, String name, double score) {}
+
+        NameIndex(ConnectionSource source, ShardMap shards) {
+            this.feed = new PatientFeed(source, shards, "name", "patient.nameIndex",
+                    Long.getLong("hospital.names.refreshMillis", 5_000L), Integer.getInteger("hospital.names.overlapIds", 5_000));
+        }
+
+        List<Match> search(String query, int limit) throws SQLException {
+            String normalized = normalize(query);
+            if (normalized.isEmpty()) {
+                return List.of();
+            }
+            catchUp();
+            synchronized (this) {
+                return rank(normalized, limit);
+            }
+        }
+
+        private List<Match> rank(String normalized, int limit) {
+            long[] grams = trigrams("  " + normalized.substring(0, Math.min(MAX_QUERY, normalized.length())));
+            int[] touched = new int[64];
+            int touchedCount = 0;
+            for (long gram : grams) {
+                Postings list = postings.get(gram);
+                if (list == null) {
+                    continue;
+                }
+                for (int i = 0; i < list.size; i++) {
+                    int doc = list.docs[i];
+                    if (scores[doc]++ == 0) {
+                        if (touchedCount == touched.length) {
+                            touched = Arrays.copyOf(touched, touchedCount * 2);
+                        }
+                        touched[touchedCount++] = doc;
+                    }
+                }
+            }
+            // At least a third of the typed trigrams must match, which still lets one typo in a short name through.
+            int required = Math.max(1, grams.length / 3);
+            PriorityQueue<Match> best = new PriorityQueue<>(limit + 1, Comparator.comparingDouble(Match::score));
+            for (int i = 0; i < touchedCount; i++) {
+                int doc = touched[i];
+                int common = scores[doc];
+                scores[doc] = 0;
+                if (common < required) {
+                    continue;
+                }
+                // Dice over the query and the part of the name it can cover, so a prefix match is not punished for
+                // the rest of a long name.
+                int docGrams = Math.min(trigramCounts[doc], grams.length + 2);
+                double score = 2.0 * common / (grams.length + docGrams);
+                if (best.size() < limit || score > best.peek().score()) {
+                    best.add(new Match(patientIds[doc], names[doc], score));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+            List<Match> ranked = new ArrayList<>(best);
+            ranked.sort(Comparator.comparingDouble(Match::score).reversed().thenComparing(Match::name));
+            return ranked;
+        }
+
+        // Called after a local insert commits so the new patient is findable at once.
+        synchronized void add(int patientId, String name) {
+            if (feed.loaded()) {
+                index(patientId, name);
+            }
+        }
+
+        synchronized int size() { return docs; }
+
+        private void catchUp() throws SQLException {
+            feed.catchUp(this, batches -> batches, batches -> {
+                for (PatientFeed.Rows rows : batches) {
+                    for (int i = 0; i < rows.size(); i++) {
+                        index(rows.ids()[i], rows.values()[i]);
+                    }
+                }
+            });
+        }
+
+        private void index(int patientId, String name) {
+            BitSet clinic = indexed.computeIfAbsent(ShardMap.clinicOf(patientId), k -> new BitSet());
+            if (name == null || clinic.get(patientId & ShardMap.ID_MASK)) {
+                return;
+            }
+            clinic.set(patientId & ShardMap.ID_MASK);
+            if (docs == patientIds.length) {
+                int capacity = docs * 2;
+                patientIds = Arrays.copyOf(patientIds, capacity);
+                names = Arrays.copyOf(names, capacity);
+                trigramCounts = Arrays.copyOf(trigramCounts, capacity);
+                scores = new int[capacity];
+            }
+            long[] grams = trigrams("  " + normalize(name) + " ");
+            int doc = docs++;
+            patientIds[doc] = patientId;
+            names[doc] = name;
+            trigramCounts[doc] = (short) Math.min(Short.MAX_VALUE, grams.length);
+            for (long gram : grams) {
+                postings.computeIfAbsent(gram, g -> new Postings()).add(doc);
+            }
+        }
+
+        private static String normalize(String text) {
+            return text.trim().toLowerCase().replaceAll("\\s+", " ");
+        }
+
+        // Each trigram packed into a long, 16 bits per char; duplicates within the text are removed.
+        private static long[] trigrams(String padded) {
+            int n = Math.max(0, padded.length() - 2);
+            long[] grams = new long[n];
+            for (int i = 0; i < n; i++) {
+                grams[i] = (long) padded.charAt(i) << 32 | (long) padded.charAt(i + 1) << 16 | padded.charAt(i + 2);
+            }
+            return Arrays.stream(grams).distinct().toArray();
+        }
+    }
+
+    // --- Utility: Doctor Roster Cache ---
+    // Available doctors per specialization as "id: name" combo items. Entries expire after
+    // hospital.roster.ttlMillis and are dropped explicitly whenever a doctor is added or changes availability.
+    static class DoctorRoster {
+        private record Entry(List<String> doctors, long loadedAt) {}
+
+        private final DoctorRepository doctors;
+        private final ShardMap shards;
+        private final long ttlNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("hospital.roster.ttlMillis", 60_000L));
+        private final ConcurrentHashMap<String, Entry> bySpecialization = new ConcurrentHashMap<>();
+        // Bumped by every invalidation so a load that raced with one is not cached.
+        private final AtomicLong generation = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        // A roster lists every clinic's doctors, read from all clinics at once.
+        DoctorRoster(DoctorRepository doctors, ShardMap shards) {
+            this.doctors = doctors;
+            this.shards = shards;
+        }
+
+        // Returns the cached roster if it is still fresh, otherwise null; never touches the database.
+        List<String> cached(String specialization) {
+            Entry entry = bySpecialization.get(specialization);
+            if (entry != null && System.nanoTime() - entry.loadedAt() < ttlNanos) {
+                hits.incrementAndGet();
+                return entry.doctors();
+            }
+            return null;
+        }
+
+        List<String> available(String specialization) throws SQLException {
+            List<String> cached = cached(specialization);
+            if (cached != null) {
+                return cached;
+            }
+            misses.incrementAndGet();
+            long seen = generation.get();
+            List<String> roster = Metrics.record("doctor.roster",
+                    () -> List.copyOf(shards.concat(shard -> doctors.roster(specialization))));
+            if (generation.get() == seen) {
+                bySpecialization.put(specialization, new Entry(roster, System.nanoTime()));
+            }
+            return roster;
+        }
+
+        void invalidate(String specialization) {
+            generation.incrementAndGet();
+            if (specialization != null) {
+                bySpecialization.remove(specialization);
+            }
+        }
+
+        void invalidateAll() {
+            generation.incrementAndGet();
+            bySpecialization.clear();
+        }
+
+        long hits() { return hits.get(); }
+        long misses() { return misses.get(); }
+        long generation() { return generation.get(); }
+    }
+
+    // --- Utility: Availability Events ---
+    // Pushes doctor changes to open windows instead of each window polling. One daemon thread asks every clinic
+    // for doctor rows whose updated_at moved since its last look (re-reading hospital.availability.overlapMillis
+    // of history, as PagedTableModel does) every hospital.availability.pollMillis, and only while something is
+    // subscribed; so K open windows cost one query per clinic per tick, not K. Writes made through
+    // HospitalService trigger a tick straight away; other processes' writes show up on the next one.
+    // Subscribers get the rows that changed on their executor (the UI thread), and the current snapshot when
+    // they subscribe, so a listener must apply rows idempotently.
+    static final class AvailabilityBus implements AutoCloseable {
+        final class Subscription implements AutoCloseable {
+            private final String specialization;
+            private final Executor ui;
+            private final Consumer<List<DoctorRepository.Row>> listener;
+            private volatile boolean closed;
+
+            private Subscription(String specialization, Executor ui, Consumer<List<DoctorRepository.Row>> listener) {
+                this.specialization = specialization;
+                this.ui = ui;
+                this.listener = listener;
+            }
+
+            private void deliver(Collection<DoctorRepository.Row> rows) {
+                List<DoctorRepository.Row> mine = rows.stream()
+                        .filter(row -> specialization == null || specialization.equals(row.specialization()))
+                        .toList();
+                if (!mine.isEmpty()) {
+                    ui.execute(() -> {
+                        if (!closed) {
+                            listener.accept(mine);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+                subscribers.remove(this);
+            }
+        }
+
+        private final DoctorRepository doctors;
+        private final ShardMap shards;
+        private final DoctorRoster roster;
+        private final long pollMillis = Long.getLong("hospital.availability.pollMillis", 2_000L);
+        private final long overlapMillis = Long.getLong("hospital.availability.overlapMillis", 2_000L);
+        private final CopyOnWriteArrayList<Subscription> subscribers = new CopyOnWriteArrayList<>();
+        // Last row seen per doctor and newest updated_at per clinic; only the poller thread writes them.
+        private final ConcurrentHashMap<Integer, DoctorRepository.Row> known = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Integer, Timestamp> watermarks = new ConcurrentHashMap<>();
+        private ScheduledExecutorService poller;
+
+        AvailabilityBus(DoctorRepository doctors, ShardMap shards, DoctorRoster roster) {
+            this.doctors = doctors;
+            this.shards = shards;
+            this.roster = roster;
+        }
+
+        // specialization null means every doctor. Close the subscription when the window closes.
+        Subscription subscribe(String specialization, Executor ui, Consumer<List<DoctorRepository.Row>> listener) {
+            Subscription subscription = new Subscription(specialization, ui, listener);
+            subscribers.add(subscription);
+            subscription.deliver(known.values());
+            start();
+            return subscription;
+        }
+
+        // Subscribes on the EDT for as long as a Swing window stays open.
+        Subscription whileOpen(Window owner, String specialization, Consumer<List<DoctorRepository.Row>> listener) {
+            Subscription subscription = subscribe(specialization, SwingUtilities::invokeLater, listener);
+            owner.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) {
+                    subscription.close();
+                    e.getWindow().removeWindowListener(this);
+                }
+            });
+            return subscription;
+        }
+
+        // Keeps "id: name" roster items (see DoctorRepository.roster) in step: doctors that became available are
+        // appended, ones that did not are removed.
+        static void applyToRoster(List<DoctorRepository.Row> rows, Predicate<String> contains,
+                                  Consumer<String> add, Consumer<String> remove) {
+            for (DoctorRepository.Row row : rows) {
+                String item = row.doctorId() + ": " + row.name();
+                if (row.available() && !contains.test(item)) {
+                    add.accept(item);
+                } else if (!row.available() && contains.test(item)) {
+                    remove.accept(item);
+                }
+            }
+        }
+
+        // Runs a tick now, e.g. right after a write; a no-op until someone subscribes.
+        synchronized void changed() {
+            if (poller != null) {
+                poller.execute(this::tick);
+            }
+        }
+
+        private synchronized void start() {
+            if (poller != null) {
+                return;
+            }
+            poller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "hospital-availability-events");
+                t.setDaemon(true);
+                return t;
+            });
+            poller.scheduleWithFixedDelay(this::tick, 0, pollMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void tick() {
+            if (subscribers.isEmpty()) {
+                return;
+            }
+            try {
+                poll();
+            } catch (SQLException e) {
+                System.err.println("Doctor availability poll failed: " + e.getMessage());
+            }
+        }
+
+        // Returns the rows that differ from the last ones seen.
+        List<DoctorRepository.Row> poll() throws SQLException {
+            List<List<DoctorRepository.Row>> byClinic = Metrics.record("doctor.changes", () -> shards.fanOut(shard -> {
+                Timestamp watermark = watermarks.get(shard.clinic());
+                DoctorRepository.Changes changes = doctors.changedSince(
+                        watermark == null ? null : new Timestamp(watermark.getTime() - overlapMillis));
+                if (changes.newest() != null) {
+                    watermarks.put(shard.clinic(), changes.newest());
+                }
+                return changes.rows();
+            }));
+            List<DoctorRepository.Row> changed = new ArrayList<>();
+            for (List<DoctorRepository.Row> rows : byClinic) {
+                for (DoctorRepository.Row row : rows) {
+                    DoctorRepository.Row previous = known.put(row.doctorId(), row);
+                    if (!row.equals(previous)) {
+                        changed.add(row);
+                        roster.invalidate(row.specialization());
+                        if (previous != null && !previous.specialization().equals(row.specialization())) {
+                            roster.invalidate(previous.specialization());
+                        }
+                    }
+                }
+            }
+            if (!changed.isEmpty()) {
+                subscribers.forEach(subscriber -> subscriber.deliver(changed));
+            }
+            return changed;
+        }
+
+        int subscribers() { return subscribers.size(); }
+
+        @Override
+        public synchronized void close() {
+            if (poller != null) {
+                poller.shutdownNow();
+            }
+        }
+    }
+
+    // --- Utility: Appointment Archival ---
+    // Keeps appointment (the hot table every booking, slot and view query reads) down to recent and upcoming rows.
+    // Every hospital.archive.intervalMinutes, appointments dated more than hospital.archive.horizonDays before
+    // today move to appointment_archive in transactions of hospital.archive.batchSize rows, with
+    // hospital.archive.pauseMillis between batches so front-desk writes are never queued behind a long lock.
+    // The rollups already count archived rows, so the dashboard is unaffected; archived rows can no longer be
+    // given a new status. A horizon of 0 turns archival off.
+    static final class AppointmentArchiver implements AutoCloseable {
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final AppointmentRepository appointments;
+        private final int horizonDays = Integer.getInteger("hospital.archive.horizonDays", 365);
+        private final int batchSize = Integer.getInteger("hospital.archive.batchSize", 1_000);
+        private final long pauseMillis = Long.getLong("hospital.archive.pauseMillis", 100L);
+        private final AtomicLong archived = new AtomicLong();
+        private ScheduledExecutorService scheduler;
+
+        AppointmentArchiver(ConnectionSource source, ShardMap shards, AppointmentRepository appointments) {
+            this.source = source;
+            this.shards = shards;
+            this.appointments = appointments;
+        }
+
+        synchronized void start() {
+            if (horizonDays <= 0 || scheduler != null) {
+                return;
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "hospital-archiver");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Long.getLong("hospital.archive.intervalMinutes", 60L);
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    archive();
+                } catch (SQLException e) {
+                    System.err.println("Appointment archival failed: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, 0, period, TimeUnit.MINUTES);
+        }
+
+        // Archives everything past the horizon, clinic by clinic and one batch per transaction; returns how many
+        // rows moved.
+        long archive() throws SQLException, InterruptedException {
+            long moved = 0;
+            for (ShardMap.Shard shard : shards.shards()) {
+                moved += archive(shard);
+            }
+            return moved;
+        }
+
+        private long archive(ShardMap.Shard shard) throws SQLException, InterruptedException {
+            LocalDate cutoff = LocalDate.now().minusDays(horizonDays);
+            long moved = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                int batch = Metrics.record("appointment.archive", () -> {
+                    try (Connection conn = shards.on(shard, source::getConnection)) {
+                        conn.setAutoCommit(false);
+                        try {
+                            int n = appointments.archiveBefore(conn, cutoff, batchSize);
+                            conn.commit();
+                            return n;
+                        } catch (SQLException e) {
+                            conn.rollback();
+                            throw e;
+                        }
+                    }
+                }, n -> n);
+                moved += batch;
+                archived.addAndGet(batch);
+                if (batch < batchSize) {
+                    break;
+                }
+                Thread.sleep(pauseMillis);
+            }
+            return moved;
+        }
+
+        long archived() { return archived.get(); }
+
+        @Override
+        public synchronized void close() {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        }
+    }
+
+    // --- Utility: Write-Behind Registration Queue ---
+    // Optional (hospital.registrations.writeBehind=true). submit() returns once the registration is forced to a
+    // local journal; a background writer inserts queued registrations in group-committed batches. The highest
+    // journal sequence applied is committed in the same transaction as its batch, so after a crash the journal
+    // is replayed from that point and every acknowledged registration is inserted exactly once.
+    // submit() refuses a doctor whose clinic has no database here, or that its clinic says does not exist. A
+    // registration that still cannot be inserted (the doctor was deleted, or could not be checked because the
+    // database was down, or a row error) is forced to the dead-letter file (hospital.registrations.deadLetter)
+    // before its batch commits: journal id, the journal line and the reason, tab separated. Nothing acknowledged
+    // is ever dropped silently, and replay skips what the dead-letter file already holds.
+    static final class RegistrationQueue implements AutoCloseable {
+        private static final String MAGIC = "hospital-registrations";
+        // MAGIC, tab, journal UUID, tab, 19-digit first sequence, newline; rewritten in place on compaction.
+        private static final int HEADER_LENGTH = MAGIC.length() + 1 + 36 + 1 + 19 + 1;
+        private static final long COMPACT_BYTES = 1 << 20;
+
+        private record Registration(long seq, String name, int age, String gender, String contact, int doctorId) {}
+
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final HospitalService service;
+        private final Path journalPath, deadLetterPath;
+        private final int capacity, maxBatch;
+        private final long offerTimeoutMillis, retryMillis;
+        private final LinkedBlockingQueue<Registration> queue = new LinkedBlockingQueue<>();
+        private final Object journalLock = new Object();
+        private final Object deadLetterLock = new Object();
+        // Doctors submit() has seen in their clinic's database; a doctor is looked up once per process.
+        private final Set<Integer> knownDoctors = ConcurrentHashMap.newKeySet();
+        private final Set<Long> deadLettered = ConcurrentHashMap.newKeySet();
+        private FileChannel deadLetters;
+        private Semaphore room;
+        private FileChannel journal;
+        private String journalId;
+        private long nextSeq, journalEnd;
+        private Thread writer;
+
+        RegistrationQueue(ConnectionSource source, ShardMap shards, HospitalService service) {
+            this(source, shards, service, Path.of(System.getProperty("hospital.registrations.journal", "registrations.journal")),
+                    Integer.getInteger("hospital.registrations.capacity", 10_000),
+                    Integer.getInteger("hospital.registrations.batchSize", 500),
+                    Long.getLong("hospital.registrations.offerTimeoutMillis", 2_000L),
+                    Long.getLong("hospital.registrations.retryMillis", 1_000L));
+        }
+
+        RegistrationQueue(ConnectionSource source, ShardMap shards, HospitalService service, Path journalPath, int capacity,
+                          int maxBatch, long offerTimeoutMillis, long retryMillis) {
+            if (capacity < 1 || maxBatch < 1) {
+                throw new IllegalArgumentException("Invalid queue size: capacity=" + capacity + ", batch=" + maxBatch);
+            }
+            this.source = source;
+            this.shards = shards;
+            this.service = service;
+            this.journalPath = journalPath;
+            this.deadLetterPath = Path.of(System.getProperty("hospital.registrations.deadLetter", journalPath + ".dead"));
+            this.capacity = capacity;
+            this.maxBatch = maxBatch;
+            this.offerTimeoutMillis = offerTimeoutMillis;
+            this.retryMillis = retryMillis;
+        }
+
+        // Replays the journal into the queue and starts the writer. Needs no database, so the front desk can
+        // keep registering while MySQL is down; the writer catches up once it is back.
+        synchronized void start() throws IOException {
+            if (writer != null) {
+                return;
+            }
+            List<Registration> pending = recover();
+            room = new Semaphore(capacity - pending.size(), true);
+            queue.addAll(pending);
+            writer = new Thread(this::drain, "hospital-registration-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Returns the journal sequence number once the registration is durable. Blocks up to
+        // hospital.registrations.offerTimeoutMillis while the queue is full.
+        long submit(String name, int age, String gender, String contact, int doctorId) throws SQLException {
+            HospitalService.validatePatient(name, age, contact);
+            if (room == null) {
+                throw new IllegalStateException("Registration queue has not been started");
+            }
+            checkDoctor(doctorId);
+            try {
+                if (!room.tryAcquire(offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SQLTransientException("Registration queue is full (" + capacity + " waiting); try again shortly");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for room in the registration queue", e);
+            }
+            synchronized (journalLock) {
+                Registration registration = new Registration(nextSeq, name, age, gender, contact, doctorId);
+                long start = journalEnd;
+                try {
+                    ByteBuffer line = ByteBuffer.wrap(encode(registration).getBytes(StandardCharsets.UTF_8));
+                    while (line.hasRemaining()) {
+                        journalEnd += journal.write(line, journalEnd);
+                    }
+                    journal.force(false);
+                } catch (IOException e) {
+                    journalEnd = start;
+                    truncateQuietly(start);
+                    room.release();
+                    throw new SQLException("Could not journal the registration: " + e.getMessage(), e);
+                }
+                nextSeq++;
+                queue.add(registration);
+                return registration.seq();
+            }
+        }
+
+        int pending() { return capacity - room.availablePermits(); }
+
+        // Throws IllegalArgumentException for a doctor whose clinic is not configured or that its clinic database
+        // does not have. While that database is unreachable a doctor not seen before cannot be checked; the
+        // registration is accepted, and goes to the dead-letter file if the doctor turns out not to exist.
+        private void checkDoctor(int doctorId) throws SQLException {
+            if (knownDoctors.contains(doctorId)) {
+                return;
+            }
+            ShardMap.Shard shard = shards.shardOf(doctorId);
+            boolean exists;
+            try {
+                exists = shards.on(shard, () -> {
+                    try (Connection conn = source.getConnection();
+                         PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM doctor WHERE doctor_id = ?")) {
+                        stmt.setInt(1, doctorId);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            return rs.next();
+                        }
+                    }
+                });
+            } catch (SQLException e) {
+                if (isConnectionFailure(e)) {
+                    return;
+                }
+                throw e;
+            }
+            if (!exists) {
+                throw new IllegalArgumentException("Unknown doctor " + doctorId);
+            }
+            knownDoctors.add(doctorId);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (writer != null) {
+                writer.interrupt();
+                try {
+                    writer.join(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (journalLock) {
+                if (journal != null) {
+                    journal.close();
+                }
+            }
+            synchronized (deadLetterLock) {
+                if (deadLetters != null) {
+                    deadLetters.close();
+                }
+            }
+        }
+
+        private void drain() {
+            List<Registration> batch = new ArrayList<>(maxBatch);
+            boolean rowByRow = false;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    if (batch.isEmpty()) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, maxBatch - 1);
+                    }
+                    apply(batch, rowByRow);
+                    room.release(batch.size());
+                    batch.clear();
+                    rowByRow = false;
+                    compact();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (SQLException e) {
+                    // The batch stays in hand (and in the journal). A bad row cannot fail the batch forever:
+                    // after a non-connection error the next attempt isolates rows with savepoints.
+                    rowByRow = !isConnectionFailure(e);
+                    System.err.println("Registration write-behind failed, retrying: " + e.getMessage());
+                    try {
+                        Thread.sleep(retryMillis);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Each clinic's registrations commit in that clinic's database together with the highest sequence applied
+        // there, so replay skips exactly what each clinic already has.
+        private void apply(List<Registration> batch, boolean rowByRow) throws SQLException {
+            Map<ShardMap.Shard, List<Registration>> byClinic = new LinkedHashMap<>();
+            for (Registration registration : batch) {
+                if (deadLettered.contains(registration.seq())) {
+                    continue;
+                }
+                ShardMap.Shard shard = shards.find(registration.doctorId());
+                if (shard == null) {
+                    // Only after a configuration change between journaling and replay; submit() checks the clinic.
+                    deadLetter(registration, "no database for clinic " + ShardMap.clinicOf(registration.doctorId()));
+                    continue;
+                }
+                byClinic.computeIfAbsent(shard, k -> new ArrayList<>()).add(registration);
+            }
+            for (Map.Entry<ShardMap.Shard, List<Registration>> clinic : byClinic.entrySet()) {
+                shards.on(clinic.getKey(), () -> {
+                    applyInClinic(clinic.getValue(), rowByRow);
+                    return null;
+                });
+            }
+        }
+
+        private void applyInClinic(List<Registration> batch, boolean rowByRow) throws SQLException {
+            List<Inserted> inserted = Metrics.record("patient.groupCommit", () -> {
+                List<Inserted> done = new ArrayList<>(batch.size());
+                try (Connection conn = source.getConnection()) {
+                    conn.setAutoCommit(false);
+                    long applied = appliedSeq(conn);
+                    try (PreparedStatement stmt = conn.prepareStatement(PatientRepository.INSERT_FOR_DOCTOR, Statement.RETURN_GENERATED_KEYS)) {
+                        List<Registration> batched = new ArrayList<>(batch.size());
+                        for (Registration registration : batch) {
+                            if (registration.seq() <= applied) {
+                                continue; // committed just before a crash
+                            }
+                            bind(stmt, registration);
+                            if (!rowByRow) {
+                                stmt.addBatch();
+                                batched.add(registration);
+                                continue;
+                            }
+                            Savepoint row = conn.setSavepoint();
+                            try {
+                                int count = stmt.executeUpdate();
+                                conn.releaseSavepoint(row);
+                                if (count == 0) {
+                                    deadLetter(registration, "Unknown doctor " + registration.doctorId());
+                                } else {
+                                    collectKeys(stmt, List.of(registration), new int[]{count}, done);
+                                }
+                            } catch (SQLException e) {
+                                if (isConnectionFailure(e)) {
+                                    throw e;
+                                }
+                                conn.rollback(row);
+                                deadLetter(registration, e.getMessage());
+                            }
+                        }
+                        if (!batched.isEmpty()) {
+                            for (Registration missing : collectKeys(stmt, batched, stmt.executeBatch(), done)) {
+                                deadLetter(missing, "Unknown doctor " + missing.doctorId());
+                            }
+                        }
+                    }
+                    try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO registration_journal (journal_id, applied_seq)"
+                            + " VALUES (?, ?) ON DUPLICATE KEY UPDATE applied_seq = GREATEST(applied_seq, VALUES(applied_seq))")) {
+                        stmt.setString(1, journalId);
+                        stmt.setLong(2, batch.get(batch.size() - 1).seq());
+                        stmt.executeUpdate();
+                    }
+                    conn.commit();
+                    return done;
+                }
+            });
+            inserted.forEach(row -> service.indexPatient(row.patientId(), row.name(), row.contact()));
+        }
+
+        private record Inserted(int patientId, String name, String contact) {}
+
+        // Generated keys come back in statement order, one per row actually inserted (an unknown doctor inserts
+        // none). Returns the registrations whose update count was 0.
+        private static List<Registration> collectKeys(Statement stmt, List<Registration> registrations, int[] counts,
+                                                      List<Inserted> into) throws SQLException {
+            List<Registration> missing = new ArrayList<>();
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                for (int i = 0; i < registrations.size(); i++) {
+                    Registration registration = registrations.get(i);
+                    if (counts[i] == 0) {
+                        missing.add(registration);
+                    } else if (keys.next()) {
+                        into.add(new Inserted(keys.getInt(1), registration.name(), registration.contact()));
+                    }
+                }
+            }
+            return missing;
+        }
+
+        // Forces the registration to the dead-letter file before the batch that gave up on it commits; from then
+        // on replay skips it. A write failure fails the batch, which is then retried.
+        private void deadLetter(Registration registration, String reason) throws SQLException {
+            synchronized (deadLetterLock) {
+                try {
+                    if (deadLetters == null) {
+                        deadLetters = FileChannel.open(deadLetterPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.APPEND);
+                    }
+                    String journalLine = encode(registration);
+                    ByteBuffer line = ByteBuffer.wrap((journalId + "\t" + journalLine.substring(0, journalLine.length() - 1)
+                            + "\t" + escape(reason) + "\n").getBytes(StandardCharsets.UTF_8));
+                    while (line.hasRemaining()) {
+                        deadLetters.write(line);
+                    }
+                    deadLetters.force(false);
+                } catch (IOException e) {
+                    throw new SQLException("Could not write registration #" + registration.seq() + " to " + deadLetterPath
+                            + ": " + e.getMessage(), e);
+                }
+            }
+            deadLettered.add(registration.seq());
+            System.err.println("Registration #" + registration.seq() + " (" + registration.name() + ") moved to "
+                    + deadLetterPath + ": " + reason);
+        }
+
+        // Sequence numbers of this journal's registrations already in the dead-letter file. A torn last line (no
+        // newline) is ignored: its batch never committed, so the registration is still in the journal.
+        private Set<Long> deadLettered() throws IOException {
+            Set<Long> seqs = new HashSet<>();
+            if (!Files.exists(deadLetterPath)) {
+                return seqs;
+            }
+            String text = new String(Files.readAllBytes(deadLetterPath), StandardCharsets.UTF_8);
+            int offset = 0;
+            int end;
+            while ((end = text.indexOf('\n', offset)) >= 0) {
+                String[] f = text.substring(offset, end).split("\t", -1);
+                if (f.length == 8 && f[0].equals(journalId)) {
+                    seqs.add(Long.parseLong(f[1]));
+                }
+                offset = end + 1;
+            }
+            return seqs;
+        }
+
+        // Locks this journal's row so two writers on one journal cannot both apply a batch.
+        private long appliedSeq(Connection conn) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT applied_seq FROM registration_journal WHERE journal_id = ? FOR UPDATE")) {
+                stmt.setString(1, journalId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+        }
+
+        private static void bind(PreparedStatement stmt, Registration registration) throws SQLException {
+            PatientRepository.bindForDoctor(stmt, registration.name(), registration.age(), registration.gender(),
+                    registration.contact(), registration.doctorId());
+        }
+
+        private static boolean isConnectionFailure(SQLException e) {
+            return e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                    || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+        }
+
+        // Once everything journaled has been applied and the journal has grown past COMPACT_BYTES, it is cut
+        // back to its header, which records where the sequence continues.
+        private void compact() throws IOException {
+            synchronized (journalLock) {
+                if (!queue.isEmpty() || room.availablePermits() != capacity || journalEnd - HEADER_LENGTH < COMPACT_BYTES) {
+                    return;
+                }
+                writeHeader(nextSeq);
+                journal.truncate(HEADER_LENGTH);
+                journal.force(false);
+                journalEnd = HEADER_LENGTH;
+                deadLettered.clear();
+            }
+        }
+
+        private List<Registration> recover() throws IOException {
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            List<Registration> pending = new ArrayList<>();
+            if (journal.size() < HEADER_LENGTH) {
+                journalId = UUID.randomUUID().toString();
+                writeHeader(1);
+                journal.truncate(HEADER_LENGTH);
+                journal.force(true);
+                nextSeq = 1;
+                journalEnd = HEADER_LENGTH;
+                return pending;
+            }
+            String text = new String(Files.readAllBytes(journalPath), StandardCharsets.UTF_8);
+            String[] header = text.substring(0, HEADER_LENGTH - 1).split("\t");
+            if (header.length != 3 || !header[0].equals(MAGIC)) {
+                throw new IOException(journalPath + " is not a registration journal");
+            }
+            journalId = header[1];
+            nextSeq = Long.parseLong(header[2]);
+            deadLettered.addAll(deadLettered());
+            int offset = HEADER_LENGTH;
+            int end;
+            // A torn last line was never acknowledged; it is dropped along with anything after it.
+            while ((end = text.indexOf('\n', offset)) >= 0) {
+                Registration registration = decode(text.substring(offset, end));
+                if (registration == null) {
+                    break;
+                }
+                if (!deadLettered.contains(registration.seq())) {
+                    pending.add(registration);
+                }
+                nextSeq = Math.max(nextSeq, registration.seq() + 1);
+                offset = end + 1;
+            }
+            journalEnd = text.substring(0, offset).getBytes(StandardCharsets.UTF_8).length;
+            if (journalEnd < journal.size()) {
+                journal.truncate(journalEnd);
+                journal.force(false);
+            }
+            if (pending.size() > capacity) {
+                throw new IOException(journalPath + " holds " + pending.size() + " registrations, more than the queue capacity " + capacity);
+            }
+            return pending;
+        }
+
+        private void writeHeader(long firstSeq) throws IOException {
+            ByteBuffer header = ByteBuffer.wrap(String.format("%s\t%s\t%019d\n", MAGIC, journalId, firstSeq)
+                    .getBytes(StandardCharsets.UTF_8));
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += journal.write(header, position);
+            }
+        }
+
+        private void truncateQuietly(long size) {
+            try {
+                journal.truncate(size);
+            } catch (IOException ignored) {
+                // The torn line is discarded on recovery anyway.
+            }
+        }
+
+        private static String encode(Registration r) {
+            return r.seq() + "\t" + escape(r.name()) + "\t" + r.age() + "\t" + escape(r.gender()) + "\t"
+                    + escape(r.contact()) + "\t" + r.doctorId() + "\n";
+        }
+
+        private static Registration decode(String line) {
+            String[] f = line.split("\t", -1);
+            if (f.length != 6) {
+                return null;
+            }
+            try {
+                return new Registration(Long.parseLong(f[0]), unescape(f[1]), Integer.parseInt(f[2]), unescape(f[3]),
+                        unescape(f[4]), Integer.parseInt(f[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static String escape(String value) {
+            if (value == null) {
+                return "\\N";
+            }
+            return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        private static String unescape(String value) {
+            if (value.equals("\\N")) {
+                return null;
+            }
+            StringBuilder out = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    char next = value.charAt(++i);
+                    out.append(switch (next) {
+                        case 't' -> '\t';
+                        case 'n' -> '\n';
+                        case 'r' -> '\r';
+                        default -> next;
+                    });
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    // --- Utility: Columnar Export ---
+    // Streams whole tables into one file for the Python notebooks: HospitalApp --export [file].
+    // Layout (little-endian): "HCOL0001", then per table and per chunk of up to hospital.export.chunkRows rows,
+    // one 8-byte-aligned block per column; then a UTF-8 JSON footer describing every block, its 8-byte offset
+    // and "HCOL0001" again. Numbers are frame-of-reference packed into 1, 2, 4 or 8 byte unsigned integers
+    // (value = stored + base; stored == null_code means NULL); dates are epoch days, datetimes wall-clock epoch
+    // millis, booleans 0/1. Strings are dictionary codes packed the same way, with a per-chunk dictionary of
+    // int32 offsets into UTF-8 bytes. Each block can be np.memmap'ed directly (see hospital_columnar.py).
+    // Rows stream off a server-side cursor and only one chunk is ever held, so heap use does not grow with
+    // table size; output goes through a direct buffer to a FileChannel.
+    static final class ColumnarExporter {
+        private static final byte[] MAGIC = "HCOL0001".getBytes(StandardCharsets.US_ASCII);
+        private static final int BUFFER_BYTES = 1 << 20;
+
+        private final ConnectionSource source;
+        private final ShardMap shards;
+        private final int chunkRows;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private FileChannel out;
+        private long position;
+
+        ColumnarExporter(ConnectionSource source, ShardMap shards) {
+            this(source, shards, Integer.getInteger("hospital.export.chunkRows", 65_536));
+        }
+
+        // Each table is read clinic by clinic into one run of chunks; every clinic has the same schema.
+        ColumnarExporter(ConnectionSource source, ShardMap shards, int chunkRows) {
+            this.source = source;
+            this.shards = shards;
+            this.chunkRows = chunkRows;
+        }
+
+        // Returns the number of rows written.
+        synchronized long export(Path file, List<String> tables) throws SQLException, IOException {
+            long rows = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                out = channel;
+                position = 0;
+                buffer.clear();
+                putBytes(MAGIC);
+                StringBuilder footer = new StringBuilder("{\"format\":\"hospital-columnar\",\"version\":1,\"tables\":[");
+                for (int i = 0; i < tables.size(); i++) {
+                    footer.append(i > 0 ? "," : "");
+                    String table = tables.get(i);
+                    rows += Metrics.record("export." + table, () -> exportTable(table, footer), n -> n);
+                }
+                align();
+                long footerOffset = position;
+                putBytes(footer.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+                ensure(16);
+                buffer.putLong(footerOffset);
+                position += 8;
+                putBytes(MAGIC);
+                flush();
+                channel.force(true);
+            } finally {
+                out = null;
+            }
+            return rows;
+        }
+
+        private long exportTable(String table, StringBuilder footer) throws SQLException {
+            try {
+                Column[] columns = null;
+                long rows = 0;
+                int inChunk = 0;
+                for (ShardMap.Shard shard : shards.shards()) {
+                    try (Connection conn = shards.on(shard, source::getConnection);
+                         PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + table,
+                                 ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                        stmt.setFetchSize(Integer.MIN_VALUE);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            if (columns == null) {
+                                ResultSetMetaData meta = rs.getMetaData();
+                                columns = new Column[meta.getColumnCount()];
+                                footer.append("{\"name\":").append(HttpApi.quote(table)).append(",\"columns\":[");
+                                for (int i = 0; i < columns.length; i++) {
+                                    columns[i] = Column.of(meta.getColumnLabel(i + 1), meta.getColumnType(i + 1), chunkRows);
+                                    footer.append(i > 0 ? "," : "").append("{\"name\":").append(HttpApi.quote(columns[i].name))
+                                            .append(",\"type\":\"").append(columns[i].type).append("\"}");
+                                }
+                                footer.append("],\"chunks\":[");
+                            }
+                            while (rs.next()) {
+                                for (int i = 0; i < columns.length; i++) {
+                                    columns[i].read(rs, i + 1, inChunk);
+                                }
+                                rows++;
+                                if (++inChunk == chunkRows) {
+                                    writeChunk(columns, inChunk, footer, rows > inChunk);
+                                    inChunk = 0;
+                                }
+                            }
+                        }
+                    }
+                }
+                if (inChunk > 0) {
+                    writeChunk(columns, inChunk, footer, rows > inChunk);
+                }
+                footer.append("],\"rows\":").append(rows).append('}');
+                return rows;
+            } catch (IOException e) {
+                throw new SQLException("Export of " + table + " failed: " + e.getMessage(), e);
+            }
+        }
+
+        private void writeChunk(Column[] columns, int rows, StringBuilder footer, boolean comma) throws IOException {
+            footer.append(comma ? "," : "").append("{\"rows\":").append(rows).append(",\"columns\":[");
+            for (int i = 0; i < columns.length; i++) {
+                footer.append(i > 0 ? "," : "");
+                Column column = columns[i];
+                if (column.strings == null) {
+                    writePacked(column.values, column.nulls, rows, footer);
+                    continue;
+                }
+                // Replace the strings by codes into this chunk's dictionary, then pack the codes like numbers.
+                Map<String, Integer> dictionary = new LinkedHashMap<>();
+                for (int row = 0; row < rows; row++) {
+                    String value = column.strings[row];
+                    column.nulls[row] = value == null;
+                    if (value != null) {
+                        column.values[row] = dictionary.computeIfAbsent(value, v -> dictionary.size());
+                    }
+                    column.strings[row] = null;
+                }
+                footer.append("{\"codes\":");
+                writePacked(column.values, column.nulls, rows, footer);
+                align();
+                long offsets = position;
+                int end = 0;
+                List<byte[]> encoded = new ArrayList<>(dictionary.size());
+                ensure(4);
+                buffer.putInt(0);
+                position += 4;
+                for (String value : dictionary.keySet()) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    encoded.add(bytes);
+                    end += bytes.length;
+                    ensure(4);
+                    buffer.putInt(end);
+                    position += 4;
+                }
+                long data = position;
+                for (byte[] bytes : encoded) {
+                    putBytes(bytes);
+                }
+                footer.append(",\"dictionary\":{\"count\":").append(dictionary.size()).append(",\"offsets\":").append(offsets)
+                        .append(",\"data\":").append(data).append(",\"length\":").append(end).append("}}");
+            }
+            footer.append("]}");
+        }
+
+        // Frame-of-reference: stores value - min in the narrowest unsigned width that also leaves room for a null code.
+        private void writePacked(long[] values, boolean[] nulls, int rows, StringBuilder footer) throws IOException {
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            boolean anyNull = false;
+            for (int row = 0; row < rows; row++) {
+                if (nulls[row]) {
+                    anyNull = true;
+                } else {
+                    min = Math.min(min, values[row]);
+                    max = Math.max(max, values[row]);
+                }
+            }
+            if (min > max) {
+                min = max = 0;
+            }
+            long span = max - min + (anyNull ? 1 : 0);
+            int width = Long.compareUnsigned(span, 0xFFL) <= 0 ? 1 : Long.compareUnsigned(span, 0xFFFFL) <= 0 ? 2
+                    : Long.compareUnsigned(span, 0xFFFF_FFFFL) <= 0 ? 4 : 8;
+            long nullCode = max - min + 1;
+            align();
+            footer.append("{\"offset\":").append(position).append(",\"width\":").append(width).append(",\"base\":").append(min)
+                    .append(",\"null_code\":").append(anyNull ? String.valueOf(nullCode) : "null").append('}');
+            for (int row = 0; row < rows; row++) {
+                long stored = nulls[row] ? nullCode : values[row] - min;
+                ensure(width);
+                switch (width) {
+                    case 1 -> buffer.put((byte) stored);
+                    case 2 -> buffer.putShort((short) stored);
+                    case 4 -> buffer.putInt((int) stored);
+                    default -> buffer.putLong(stored);
+                }
+                position += width;
+            }
+        }
+
+        private void putBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+                position += n;
+            }
+        }
+
+        private void align() throws IOException {
+            while (position % 8 != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+                position++;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // One column's values for the current chunk; strings are kept as-is until the chunk is written.
+        private static final class Column {
+            final String name, type;
+            final long[] values;
+            final boolean[] nulls;
+            final String[] strings;
+
+            private Column(String name, String type, int rows) {
+                this.name = name;
+                this.type = type;
+                this.values = new long[rows];
+                this.nulls = new boolean[rows];
+                this.strings = type.equals("string") ? new String[rows] : null;
+            }
+
+            static Column of(String name, int sqlType, int rows) {
+                String type = switch (sqlType) {
+                    case Types.BIT, Types.BOOLEAN -> "bool";
+                    case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT -> "int";
+                    case Types.DATE -> "date";
+                    case Types.TIMESTAMP, Types.TIMESTAMP_WITH_TIMEZONE -> "datetime";
+                    default -> "string";
+                };
+                return new Column(name, type, rows);
+            }
+
+            void read(ResultSet rs, int index, int row) throws SQLException {
+                switch (type) {
+                    case "bool" -> values[row] = rs.getBoolean(index) ? 1 : 0;
+                    case "int" -> values[row] = rs.getLong(index);
+                    case "date" -> {
+                        Date date = rs.getDate(index);
+                        values[row] = date == null ? 0 : date.toLocalDate().toEpochDay();
+                    }
+                    case "datetime" -> {
+                        Timestamp timestamp = rs.getTimestamp(index);
+                        values[row] = timestamp == null ? 0
+                                : timestamp.toLocalDateTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+                    }
+                    default -> strings[row] = rs.getString(index);
+                }
+                if (strings == null) {
+                    nulls[row] = rs.wasNull();
+                }
+            }
+        }
+    }
+
+    // --- Utility: Query Metrics ---
+    // Latency histograms per named operation, exported over JMX as hospital:type=Query,name=<operation>. Setting
+    // hospital.metrics.dumpSeconds also prints them to stdout that often; by default nothing is printed.
+    // Recording is two nanoTime() calls and a few uncontended atomic adds, well under a microsecond.
+    static final class Metrics {
+        private static final ConcurrentHashMap<String, Operation> OPERATIONS = new ConcurrentHashMap<>();
+        private static final long DUMP_SECONDS = Long.getLong("hospital.metrics.dumpSeconds", 0L);
+
+        static {
+            if (DUMP_SECONDS > 0) {
+                ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "hospital-metrics-dump");
+                    t.setDaemon(true);
+                    return t;
+                });
+                dumper.scheduleAtFixedRate(() -> System.out.print(dump()), DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+
+        private Metrics() {}
+
+        interface SqlCall<T> {
+            T call() throws SQLException;
+        }
+
+        // Times call under the given operation name; rows are the size of a returned collection or array, else 1.
+        static <T> T record(String operation, SqlCall<T> call) throws SQLException {
+            return record(operation, call, Metrics::rows);
+        }
+
+        static <T> T record(String operation, SqlCall<T> call, ToLongFunction<? super T> rows) throws SQLException {
+            Operation op = operation(operation);
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                op.record(System.nanoTime() - start, rows.applyAsLong(result), false);
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                op.record(System.nanoTime() - start, 0, true);
+                throw e;
+            }
+        }
+
+        static Operation operation(String name) {
+            Operation op = OPERATIONS.get(name);
+            return op != null ? op : OPERATIONS.computeIfAbsent(name, Operation::new);
+        }
+
+        static void registerPool(String name, ConnectionPool pool) {
+            register("hospital:type=Pool,name=" + name, new PoolMXBean() {
+                public int getActive() { return pool.activeConnections(); }
+                public int getIdle() { return pool.idleConnections(); }
+                public int getOpen() { return pool.openConnections(); }
+                public int getMaxSize() { return pool.maxSize(); }
+                public long getStatementCacheHits() { return pool.statementHits(); }
+                public long getStatementCacheMisses() { return pool.statementMisses(); }
+                public long getLeakedConnections() { return pool.leakedConnections(); }
+                public long getLeakedStatements() { return pool.leakedStatements(); }
+            });
+        }
+
+        // Registers each replica's pool and its routing state as <name>.replica<i>.
+        static void registerRouting(String name, RoutingDataSource routing) {
+            List<RoutingDataSource.Replica> replicas = routing.replicas();
+            for (int i = 0; i < replicas.size(); i++) {
+                RoutingDataSource.Replica replica = replicas.get(i);
+                registerPool(name + ".replica" + i, replica.pool);
+                register("hospital:type=Replica,name=" + name + ".replica" + i, new ReplicaMXBean() {
+                    public String getUrl() { return replica.url; }
+                    public boolean isServing() { return routing.serves(replica, System.nanoTime(), routing.lastWrite()); }
+                    public long getLagMillis() { return replica.lagMillis(System.nanoTime()); }
+                    public long getReads() { return replica.reads.sum(); }
+                });
+            }
+            register("hospital:type=Replica,name=" + name + ".primary", new ReplicaMXBean() {
+                public String getUrl() { return "primary"; }
+                public boolean isServing() { return true; }
+                public long getLagMillis() { return 0; }
+                public long getReads() { return routing.primaryReads(); }
+            });
+        }
+
+        static void registerRoster(String name, DoctorRoster roster) {
+            register("hospital:type=RosterCache,name=" + name, new RosterMXBean() {
+                public long getHits() { return roster.hits(); }
+                public long getMisses() { return roster.misses(); }
+                public long getGeneration() { return roster.generation(); }
+            });
+        }
+
+        static String dump() {
+            StringBuilder out = new StringBuilder(String.format("--- hospital metrics %s ---%n", LocalDateTime.now().withNano(0)));
+            out.append(String.format("%-28s %9s %7s %10s %9s %9s %9s %9s %9s%n",
+                    "operation", "count", "errors", "rows", "mean_us", "p50_us", "p95_us", "p99_us", "max_us"));
+            new TreeMap<>(OPERATIONS).forEach((name, op) -> out.append(String.format(
+                    "%-28s %9d %7d %10d %9.1f %9.1f %9.1f %9.1f %9.1f%n", name, op.getCount(), op.getErrors(),
+                    op.getRows(), op.getMeanMicros(), op.getP50Micros(), op.getP95Micros(), op.getP99Micros(),
+                    op.getMaxMicros())));
+            return out.toString();
+        }
+
+        private static long rows(Object result) {
+            if (result instanceof Collection<?> c) {
+                return c.size();
+            }
+            if (result instanceof Object[] a) {
+                return a.length;
+            }
+            return result == null ? 0 : 1;
+        }
+
+        private static void register(String objectName, Object mbean) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(objectName);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(mbean, name);
+                }
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public interface OperationMXBean {
+            long getCount();
+            long getErrors();
+            long getRows();
+            double getMeanMicros();
+            double getP50Micros();
+            double getP95Micros();
+            double getP99Micros();
+            double getMaxMicros();
+        }
+
+        public interface PoolMXBean {
+            int getActive();
+            int getIdle();
+            int getOpen();
+            int getMaxSize();
+            long getStatementCacheHits();
+            long getStatementCacheMisses();
+            long getLeakedConnections();
+            long getLeakedStatements();
+        }
+
+        public interface ReplicaMXBean {
+            String getUrl();
+            boolean isServing();
+            long getLagMillis();
+            long getReads();
+        }
+
+        public interface RosterMXBean {
+            long getHits();
+            long getMisses();
+            long getGeneration();
+        }
+
+        // Log-linear buckets in the style of HdrHistogram: 16 linear sub-buckets per power of two, so any
+        // recorded latency is reported within 1/16 (about 6%) of its true value.
+        static final class Operation implements OperationMXBean {
+            private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+            private static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+            private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+            private final LongAdder count = new LongAdder();
+            private final LongAdder errors = new LongAdder();
+            private final LongAdder rows = new LongAdder();
+            private final LongAdder totalNanos = new LongAdder();
+            private final AtomicLong maxNanos = new AtomicLong();
+
+            private Operation(String name) {
+                register("hospital:type=Query,name=" + name, this);
+            }
+
+            void record(long nanos, long rowCount, boolean error) {
+                nanos = Math.max(0, nanos);
+                buckets.incrementAndGet(bucket(nanos));
+                count.increment();
+                totalNanos.add(nanos);
+                if (error) {
+                    errors.increment();
+                } else if (rowCount != 0) {
+                    rows.add(rowCount);
+                }
+                long max = maxNanos.get();
+                while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                    max = maxNanos.get();
+                }
+            }
+
+            private static int bucket(long value) {
+                if (value < SUB) {
+                    return (int) value;
+                }
+                int exponent = 63 - Long.numberOfLeadingZeros(value);
+                int shift = exponent - SUB_BITS;
+                return SUB + shift * SUB + (int) ((value >>> shift) & (SUB - 1));
+            }
+
+            // Highest value that lands in the bucket.
+            private static long upperBound(int bucket) {
+                if (bucket < SUB) {
+                    return bucket;
+                }
+                int shift = (bucket - SUB) / SUB;
+                long sub = (bucket - SUB) % SUB;
+                return ((SUB + sub + 1) << shift) - 1;
+            }
+
+            long percentileNanos(double percentile) {
+                long total = 0;
+                long[] snapshot = new long[BUCKETS];
+                for (int i = 0; i < BUCKETS; i++) {
+                    snapshot[i] = buckets.get(i);
+                    total += snapshot[i];
+                }
+                if (total == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += snapshot[i];
+                    if (seen >= rank) {
+                        return Math.min(upperBound(i), maxNanos.get());
+                    }
+                }
+                return maxNanos.get();
+            }
+
+            @Override public long getCount() { return count.sum(); }
+            @Override public long getErrors() { return errors.sum(); }
+            @Override public long getRows() { return rows.sum(); }
+            @Override public double getP50Micros() { return percentileNanos(50) / 1_000.0; }
+            @Override public double getP95Micros() { return percentileNanos(95) / 1_000.0; }
+            @Override public double getP99Micros() { return percentileNanos(99) / 1_000.0; }
+            @Override public double getMaxMicros() { return maxNanos.get() / 1_000.0; }
+
+            @Override
+            public double getMeanMicros() {
+                long n = count.sum();
+                return n == 0 ? 0 : totalNanos.sum() / (n * 1_000.0);
+            }
+        }
+    }
+
+    // --- Utility: Background Data Access ---
+    // JDBC work runs on a small bounded pool, never on the Swing EDT or the JavaFX application thread.
+    // Results and errors are handed back through the caller's UI executor unless the task was cancelled.
+    static final class DataAccess {
+        private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+                Integer.getInteger("hospital.dataAccess.threads", 4),
+                Integer.getInteger("hospital.dataAccess.threads", 4),
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Integer.getInteger("hospital.dataAccess.queue", 1_000)),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "hospital-db-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        static {
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+
+        private DataAccess() {
+        }
+
+        static <T> Future<T> submit(Callable<T> work, Executor ui,
+                                    Consumer<? super T> onSuccess, Consumer<? super Exception> onError) {
+            FutureTask<T> task = new FutureTask<>(work) {
+                @Override
+                protected void done() {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    try {
+                        T result = get();
+                        ui.execute(() -> {
+                            if (!isCancelled()) {
+                                onSuccess.accept(result);
+                            }
+                        });
+                    } catch (ExecutionException e) {
+                        Exception cause = e.getCause() instanceof Exception ex ? ex : e;
+                        ui.execute(() -> onError.accept(cause));
+                    } catch (InterruptedException | CancellationException ignored) {
+                    }
+                }
+            };
+            try {
+                EXECUTOR.execute(task);
+            } catch (RejectedExecutionException e) {
+                ui.execute(() -> onError.accept(new SQLTransientException("Too many pending database requests, try again")));
+                task.cancel(false);
+            }
+            return task;
+        }
+
+        // Runs work for a Swing window; the task is cancelled if the window is disposed before it finishes.
+        static <T> Future<T> onSwing(Window owner, Callable<T> work,
+                                     Consumer<? super T> onSuccess, Consumer<? super Exception> onError) {
+            CancelOnClose listener = new CancelOnClose();
+            owner.addWindowListener(listener);
+            Future<T> task = submit(work, r -> SwingUtilities.invokeLater(() -> {
+                owner.removeWindowListener(listener);
+                r.run();
+            }), onSuccess, onError);
+            listener.task = task;
+            return task;
+        }
+
+        private static class CancelOnClose extends WindowAdapter {
+            volatile Future<?> task;
+
+            @Override
+            public void windowClosed(WindowEvent e) {
+                Future<?> t = task;
+                if (t != null) {
+                    t.cancel(true);
+                }
+                e.getWindow().removeWindowListener(this);
+            }
+        }
+    }
+
+    // --- Utility: Get DB Connection ---
+    static final String DB_URL = System.getProperty("hospital.db.url",
+            "jdbc:mysql://localhost:3306/hospital_db?createDatabaseIfNotExist=true"
+                    + "&rewriteBatchedStatements=true&useServerPrepStmts=true");
+    static final String DB_USER = System.getProperty("hospital.db.user", "root");
+    static final String DB_PASSWORD = System.getProperty("hospital.db.password", "");
+    static final ConnectionPool POOL = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD);
+    // Views, roster loads and exports read from the replicas listed in hospital.db.replicas when they are in sync.
+    static final RoutingDataSource DATABASE = RoutingDataSource.withReplicas(POOL,
+            System.getProperty("hospital.db.replicas", ""),
+            System.getProperty("hospital.db.replicaUser", DB_USER),
+            System.getProperty("hospital.db.replicaPassword", DB_PASSWORD));
+
+    // The home clinic is the one on hospital.db.url; hospital.shards adds the others (see ShardMap).
+    static final ShardMap SHARDS = ShardMap.of(Integer.getInteger("hospital.clinic", 0), POOL, DATABASE,
+            System.getProperty("hospital.shards", ""), DB_USER, DB_PASSWORD);
+
+    static final String DENTIST = "Dentist";
+    static final PatientRepository PATIENTS = new PatientRepository(HospitalApp::getConnection, HospitalApp::readConnection);
+    static final DoctorRepository DOCTORS = new DoctorRepository(HospitalApp::getConnection, HospitalApp::readConnection);
+    static final DoctorRoster ROSTER = new DoctorRoster(DOCTORS, SHARDS);
+    static final AppointmentAnalytics ANALYTICS = new AppointmentAnalytics(HospitalApp::getConnection, SHARDS);
+    static final SlotScheduler SLOTS = new SlotScheduler(HospitalApp::getConnection, SHARDS, ANALYTICS);
+    static final AvailabilityIndex AVAILABILITY = new AvailabilityIndex(HospitalApp::getConnection, SHARDS, SLOTS, ROSTER);
+    static final AvailabilityBus AVAILABILITY_EVENTS = new AvailabilityBus(DOCTORS, SHARDS, ROSTER);
+    static final DoctorLoadBalancer LOADS = new DoctorLoadBalancer(SLOTS, AVAILABILITY, ROSTER);
+    static final HospitalService SERVICE = new HospitalService(HospitalApp::getConnection, SHARDS, ROSTER, AVAILABILITY_EVENTS, SLOTS, AVAILABILITY,
+            LOADS, new ContactIndex(HospitalApp::getConnection, SHARDS), new NameIndex(HospitalApp::getConnection, SHARDS), ANALYTICS);
+    // Started by main once the schema is current (not for --export).
+    static final AppointmentArchiver ARCHIVER = new AppointmentArchiver(HospitalApp::getConnection, SHARDS, new AppointmentRepository());
+    // Null unless hospital.registrations.writeBehind is set; started by main once the schema is current.
+    static final RegistrationQueue REGISTRATIONS = Boolean.getBoolean("hospital.registrations.writeBehind")
+            ? new RegistrationQueue(HospitalApp::getConnection, SHARDS, SERVICE) : null;
+
+    static {
+        Metrics.registerPool("hospital_db", POOL);
+        Metrics.registerRouting("hospital_db", DATABASE);
+        Metrics.registerRoster("hospital_db", ROSTER);
+        for (ShardMap.Shard shard : SHARDS.shards()) {
+            if (shard != SHARDS.home()) {
+                Metrics.registerPool("clinic_" + shard.clinic(), shard.pool());
+            }
+        }
+    }
+
+    // The current clinic's database: the home clinic's, or the one selected by SHARDS.on().
+    static Connection getConnection() throws SQLException {
+        return SHARDS.getConnection();
+    }
+
+    static Connection readConnection() throws SQLException {
+        return SHARDS.readConnection();
+    }
+
+    interface ConnectionSource {
+        Connection getConnection() throws SQLException;
+    }
+
+    // --- Utility: Clinic Shards ---
+    // Each clinic keeps its doctors, patients and appointments in its own database: the home clinic
+    // (hospital.clinic, default 0) on hospital.db.url, the others listed in hospital.shards as
+    // "clinic=jdbcUrl,...". Ids need no shared sequence: migration 10 starts clinic c's AUTO_INCREMENT counters
+    // above c << ID_BITS, so every id names its clinic (clinicOf) and a clinic has 2^24 ids per table.
+    // Inside on(id, call), HospitalApp.getConnection() and readConnection() go to the database that owns id;
+    // elsewhere they go to the home clinic. fanOut runs a call once per clinic, in parallel on up to
+    // hospital.shards.threads pooled threads, and returns the results in clinic order. The pool has no queue: a
+    // clinic no idle thread can take runs on the calling thread, so nested fanOuts cannot wait on each other.
+    // With no hospital.shards there is one clinic and nothing changes.
+    static final class ShardMap implements AutoCloseable {
+        static final int ID_BITS = 24;
+        static final int ID_MASK = (1 << ID_BITS) - 1;
+        static final int MAX_CLINIC = Integer.MAX_VALUE >>> ID_BITS;
+
+        record Shard(int clinic, ConnectionPool pool, RoutingDataSource database) {}
+
+        interface ShardCall<T> {
+            T call(Shard shard) throws SQLException;
+        }
+
+        private final Shard home;
+        private final TreeMap<Integer, Shard> byClinic = new TreeMap<>();
+        private final ThreadLocal<Shard> current = new ThreadLocal<>();
+        private final ThreadPoolExecutor workers;
+
+        ShardMap(Shard home, List<Shard> others) {
+            this.home = home;
+            int threads = Integer.getInteger("hospital.shards.threads", 16);
+            this.workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "hospital-shard-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    (task, pool) -> task.run());
+            workers.allowCoreThreadTimeOut(true);
+            byClinic.put(home.clinic(), home);
+            for (Shard shard : others) {
+                if (byClinic.putIfAbsent(shard.clinic(), shard) != null) {
+                    throw new IllegalArgumentException("Clinic " + shard.clinic() + " has two databases");
+                }
+            }
+        }
+
+        // Every other clinic gets its own pool with the same credentials and no replicas.
+        static ShardMap of(int homeClinic, ConnectionPool pool, RoutingDataSource home, String others,
+                           String user, String password) {
+            List<Shard> shards = new ArrayList<>();
+            for (String entry : others.split(",")) {
+                if (entry.isBlank()) {
+                    continue;
+                }
+                int eq = entry.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("hospital.shards entries are clinic=jdbcUrl: " + entry);
+                }
+                ConnectionPool shardPool = new ConnectionPool(entry.substring(eq + 1).trim(), user, password);
+                shards.add(new Shard(checkClinic(Integer.parseInt(entry.substring(0, eq).trim())), shardPool,
+                        RoutingDataSource.withReplicas(shardPool, "", user, password)));
+            }
+            return new ShardMap(new Shard(checkClinic(homeClinic), pool, home), shards);
+        }
+
+        private static int checkClinic(int clinic) {
+            if (clinic < 0 || clinic > MAX_CLINIC) {
+                throw new IllegalArgumentException("Clinic ids run from 0 to " + MAX_CLINIC + ": " + clinic);
+            }
+            return clinic;
+        }
+
+        static int clinicOf(int id) {
+            return id >>> ID_BITS;
+        }
+
+        // Every id clinic hands out is above this.
+        static int idBase(int clinic) {
+            return clinic << ID_BITS;
+        }
+
+        Shard home() { return home; }
+
+        Collection<Shard> shards() { return byClinic.values(); }
+
+        Shard current() {
+            Shard shard = current.get();
+            return shard != null ? shard : home;
+        }
+
+        Connection getConnection() throws SQLException {
+            return current().database().getConnection();
+        }
+
+        Connection readConnection() throws SQLException {
+            return current().database().readConnection();
+        }
+
+        // The clinic database that owns id, or null when that clinic is not configured here.
+        Shard find(int id) {
+            return byClinic.get(clinicOf(id));
+        }
+
+        Shard shardOf(int id) {
+            Shard shard = find(id);
+            if (shard == null) {
+                throw new IllegalArgumentException("Id " + id + " belongs to clinic " + clinicOf(id) + ", which has no database here.");
+            }
+            return shard;
+        }
+
+        <T> T on(int id, Metrics.SqlCall<T> call) throws SQLException {
+            return on(shardOf(id), call);
+        }
+
+        <T> T on(Shard shard, Metrics.SqlCall<T> call) throws SQLException {
+            Shard previous = current.get();
+            current.set(shard);
+            try {
+                return call.call();
+            } finally {
+                if (previous == null) {
+                    current.remove();
+                } else {
+                    current.set(previous);
+                }
+            }
+        }
+
+        <T> List<T> fanOut(ShardCall<T> call) throws SQLException {
+            if (byClinic.size() == 1) {
+                return Collections.singletonList(on(home, () -> call.call(home)));
+            }
+            List<Future<T>> futures = new ArrayList<>(byClinic.size());
+            for (Shard shard : byClinic.values()) {
+                futures.add(workers.submit(() -> on(shard, () -> call.call(shard))));
+            }
+            try {
+                List<T> results = new ArrayList<>(futures.size());
+                for (Future<T> future : futures) {
+                    results.add(future.get());
+                }
+                return results;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException sql) {
+                    throw sql;
+                }
+                if (e.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                throw new SQLException("Clinic query failed: " + e.getCause(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for the clinic databases", e);
+            } finally {
+                futures.forEach(future -> future.cancel(true));
+            }
+        }
+
+        // fanOut for calls that return lists: one list, clinic by clinic (so in id order when each part is).
+        <T> List<T> concat(ShardCall<? extends List<T>> call) throws SQLException {
+            List<T> all = new ArrayList<>();
+            for (List<T> part : fanOut(call)) {
+                all.addAll(part);
+            }
+            return all;
+        }
+
+        // The ids owned by shard, in their original order.
+        static int[] idsIn(Shard shard, int[] ids) {
+            return Arrays.stream(ids).filter(id -> clinicOf(id) == shard.clinic()).toArray();
+        }
+
+        // A clinic database that ran unsharded before joining would hold ids outside its range; refuse to start
+        // rather than route its rows to the wrong clinic.
+        void checkIdRanges() throws SQLException {
+            fanOut(shard -> {
+                try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
+                    for (String table : List.of("doctor", "patient", "appointment")) {
+                        try (ResultSet rs = stmt.executeQuery("SELECT MIN(" + table + "_id), MAX(" + table + "_id) FROM " + table)) {
+                            rs.next();
+                            long min = rs.getLong(1);
+                            boolean empty = rs.wasNull();
+                            long max = rs.getLong(2);
+                            if (!empty && (clinicOf((int) min) != shard.clinic() || clinicOf((int) max) != shard.clinic())) {
+                                throw new SQLException("Clinic " + shard.clinic() + "'s " + table + " ids (" + min + " to "
+                                        + max + ") are outside its range above " + idBase(shard.clinic()));
+                            }
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        // Closes every clinic's database, the home one included.
+        @Override
+        public void close() {
+            workers.shutdownNow();
+            for (Shard shard : byClinic.values()) {
+                shard.database().close();
+            }
+        }
+    }
+
+    // --- Utility: Read/Write Routing ---
+    // getConnection() always goes to the primary; readConnection() goes round-robin to the replicas that are
+    // currently fit to serve, and falls back to the primary when none is. Every hospital.replicas.checkMillis the
+    // primary bumps this client's row in replication_heartbeat and each replica is asked for its copy of that row.
+    // A replica serves reads only if it answered, its copy is at most hospital.replicas.maxLagMillis old, and the
+    // copy was written after the last primary connection that wrote was closed. Replication applies commits in
+    // order, so the last rule gives read-your-writes: a view opened right after a booking shows the booking.
+    // The write marker is per client process, which suits the desktop app's single front-desk session.
+    static final class RoutingDataSource implements ConnectionSource, AutoCloseable {
+        static final class Replica {
+            final String url;
+            final ConnectionPool pool;
+            final LongAdder reads = new LongAdder();
+            // nanoTime of the newest heartbeat the replica has applied, or -1 before the first one arrives.
+            volatile long beat = -1;
+            volatile boolean reachable;
+
+            Replica(String url, ConnectionPool pool) {
+                this.url = url;
+                this.pool = pool;
+            }
+
+            long lagMillis(long now) {
+                return beat < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(now - beat);
+            }
+        }
+
+        private final ConnectionPool primary;
+        private final List<Replica> replicas;
+        private final String sourceId = UUID.randomUUID().toString();
+        private final long maxLagNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("hospital.replicas.maxLagMillis", 5_000L));
+        private final int checkTimeoutSeconds = Integer.getInteger("hospital.replicas.checkTimeoutSeconds", 2);
+        private final AtomicInteger next = new AtomicInteger();
+        // Starts at construction: anything written before this process started is covered by the first heartbeat.
+        private final AtomicLong lastWrite = new AtomicLong(System.nanoTime());
+        private final LongAdder primaryReads = new LongAdder();
+        private final ScheduledExecutorService checker;
+        private volatile boolean heartbeatFailing;
+
+        RoutingDataSource(ConnectionPool primary, List<Replica> replicas) {
+            this.primary = primary;
+            this.replicas = List.copyOf(replicas);
+            if (this.replicas.isEmpty()) {
+                checker = null;
+                return;
+            }
+            checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "hospital-replica-check");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Long.getLong("hospital.replicas.checkMillis", 1_000L);
+            checker.scheduleWithFixedDelay(this::check, 0, period, TimeUnit.MILLISECONDS);
+        }
+
+        // urls is a comma-separated list of replica JDBC URLs; blank means no replicas, so every read uses the primary.
+        static RoutingDataSource withReplicas(ConnectionPool primary, String urls, String user, String password) {
+            List<Replica> replicas = new ArrayList<>();
+            for (String url : urls.split(",")) {
+                if (!url.isBlank()) {
+                    replicas.add(new Replica(url.trim(), new ConnectionPool(url.trim(), user, password)));
+                }
+            }
+            return new RoutingDataSource(primary, replicas);
+        }
+
+        // For anything that writes, or reads what it must see it just wrote.
+        @Override
+        public Connection getConnection() throws SQLException {
+            Connection conn = primary.getConnection();
+            return replicas.isEmpty() ? conn : tracked(conn);
+        }
+
+        // For read-only work that can tolerate hospital.replicas.maxLagMillis of staleness.
+        Connection readConnection() throws SQLException {
+            int n = replicas.size();
+            if (n > 0) {
+                long now = System.nanoTime();
+                long writtenAt = lastWrite.get();
+                int start = next.getAndIncrement();
+                for (int i = 0; i < n; i++) {
+                    Replica replica = replicas.get(Math.floorMod(start + i, n));
+                    if (!serves(replica, now, writtenAt)) {
+                        continue;
+                    }
+                    try {
+                        Connection conn = replica.pool.getConnection();
+                        replica.reads.increment();
+                        return conn;
+                    } catch (SQLTransientException e) {
+                        // Busy rather than down: try the next replica.
+                    } catch (SQLException e) {
+                        replica.reachable = false;
+                    }
+                }
+            }
+            primaryReads.increment();
+            return primary.getConnection();
+        }
+
+        boolean serves(Replica replica, long now, long writtenAt) {
+            long beat = replica.beat;
+            return replica.reachable && beat >= 0 && beat - writtenAt > 0 && now - beat <= maxLagNanos;
+        }
+
+        List<Replica> replicas() { return replicas; }
+        long lastWrite() { return lastWrite.get(); }
+        long primaryReads() { return primaryReads.sum(); }
+
+        @Override
+        public void close() {
+            if (checker != null) {
+                checker.shutdownNow();
+                try (Connection conn = primary.getConnection();
+                     PreparedStatement stmt = conn.prepareStatement("DELETE FROM replication_heartbeat WHERE source_id = ?")) {
+                    stmt.setString(1, sourceId);
+                    stmt.executeUpdate();
+                } catch (SQLException ignored) {
+                }
+            }
+            replicas.forEach(replica -> replica.pool.close());
+            primary.close();
+        }
+
+        // Marks the close of any primary connection that prepared something other than a SELECT as a write.
+        private Connection tracked(Connection conn) {
+            boolean[] wrote = {false};
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "prepareStatement" -> wrote[0] |= !isSelect((String) args[0]);
+                    case "createStatement", "prepareCall" -> wrote[0] = true;
+                    default -> {
+                    }
+                }
+                try {
+                    return method.invoke(conn, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    if (wrote[0] && method.getName().equals("close")) {
+                        wrote[0] = false;
+                        lastWrite.accumulateAndGet(System.nanoTime(), Math::max);
+                    }
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+        }
+
+        private static boolean isSelect(String sql) {
+            return sql.stripLeading().regionMatches(true, 0, "SELECT", 0, 6);
+        }
+
+        // Heartbeats go straight to the primary pool so they never count as writes themselves. If the primary
+        // cannot be reached the replicas' copies age past the lag limit and reads fall back to the primary too.
+        private void check() {
+            long beat = System.nanoTime();
+            try {
+                Metrics.record("replica.heartbeat", () -> {
+                    try (Connection conn = primary.getConnection();
+                         PreparedStatement update = conn.prepareStatement(
+                                 "UPDATE replication_heartbeat SET beat_nanos = ? WHERE source_id = ?")) {
+                        update.setLong(1, beat);
+                        update.setString(2, sourceId);
+                        if (update.executeUpdate() == 0) {
+                            try (PreparedStatement insert = conn.prepareStatement(
+                                    "INSERT INTO replication_heartbeat (source_id, beat_nanos) VALUES (?, ?)")) {
+                                insert.setString(1, sourceId);
+                                insert.setLong(2, beat);
+                                insert.executeUpdate();
+                            }
+                        }
+                    }
+                    return null;
+                });
+                heartbeatFailing = false;
+            } catch (SQLException e) {
+                if (!heartbeatFailing) {
+                    System.err.println("Replication heartbeat failed: " + e.getMessage());
+                }
+                heartbeatFailing = true;
+            }
+            replicas.forEach(this::check);
+        }
+
+        private void check(Replica replica) {
+            try {
+                long applied = Metrics.record("replica.check", () -> {
+                    try (Connection conn = replica.pool.getConnection();
+                         PreparedStatement stmt = conn.prepareStatement(
+                                 "SELECT beat_nanos FROM replication_heartbeat WHERE source_id = ?")) {
+                        stmt.setQueryTimeout(checkTimeoutSeconds);
+                        stmt.setString(1, sourceId);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            return rs.next() ? rs.getLong(1) : -1L;
+                        }
+                    }
+                });
+                if (!replica.reachable) {
+                    System.err.println("Replica " + replica.url + " is reachable");
+                }
+                replica.beat = applied;
+                replica.reachable = true;
+            } catch (SQLException e) {
+                if (replica.reachable) {
+                    System.err.println("Replica " + replica.url + " stopped answering: " + e.getMessage());
+                }
+                replica.reachable = false;
+            }
+        }
+    }
+
+    // --- Utility: Bounded Connection Pool ---
+    // Connections handed out are proxies; close() returns the physical connection to the pool.
+    // Sizing and timeouts come from hospital.pool.* system properties.
+    // Each physical connection keeps up to hospital.pool.statementCacheSize prepared statements: prepareStatement
+    // hands out an idle one for the same SQL if there is one, and closing it puts it back instead of closing it.
+    // Statements still open when their connection is returned are closed then and counted as leaked; with
+    // hospital.pool.leakDetectionMillis set, connections held longer than that are reported with the stack
+    // that borrowed them.
+    static class ConnectionPool implements ConnectionSource, AutoCloseable {
+        private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+        private final String url, user, password;
+        private final int minSize, maxSize;
+        private final long idleTimeoutMillis, borrowTimeoutMillis, validationIntervalMillis;
+        private final int statementCacheSize = Integer.getInteger("hospital.pool.statementCacheSize", 32);
+        private final long leakDetectionMillis = Long.getLong("hospital.pool.leakDetectionMillis", 0L);
+        private final Semaphore permits;
+        private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+        private final Set<PooledConnection> leased = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger open = new AtomicInteger();
+        private final LongAdder statementHits = new LongAdder();
+        private final LongAdder statementMisses = new LongAdder();
+        private final LongAdder leakedConnections = new LongAdder();
+        private final LongAdder leakedStatements = new LongAdder();
+        private final ScheduledExecutorService housekeeper;
+        private volatile boolean closed;
+
+        ConnectionPool(String url, String user, String password) {
+            this(url, user, password,
+                    Integer.getInteger("hospital.pool.minSize", 2),
+                    Integer.getInteger("hospital.pool.maxSize", 10),
+                    Long.getLong("hospital.pool.idleTimeoutMillis", 300_000L),
+                    Long.getLong("hospital.pool.borrowTimeoutMillis", 5_000L),
+                    Long.getLong("hospital.pool.validationIntervalMillis", 1_000L));
+        }
+
+        ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                       long idleTimeoutMillis, long borrowTimeoutMillis, long validationIntervalMillis) {
+            if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+                throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+            }
+            this.url = url;
+            this.user = user;
+            this.password = password;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.borrowTimeoutMillis = borrowTimeoutMillis;
+            this.validationIntervalMillis = validationIntervalMillis;
+            this.permits = new Semaphore(maxSize, true);
+            this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "hospital-pool-housekeeper");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1_000L, Math.min(idleTimeoutMillis, 30_000L));
+            housekeeper.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+            if (leakDetectionMillis > 0) {
+                long leakPeriod = Math.max(100L, leakDetectionMillis / 2);
+                housekeeper.scheduleWithFixedDelay(this::reportLeaks, leakPeriod, leakPeriod, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Time spent waiting for a permit and validating or opening a connection is recorded as pool.acquire.
+        @Override
+        public Connection getConnection() throws SQLException {
+            return Metrics.record("pool.acquire", this::acquire, c -> 0);
+        }
+
+        private Connection acquire() throws SQLException {
+            if (closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            try {
+                if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SQLTransientConnectionException("Timed out after " + borrowTimeoutMillis
+                            + " ms waiting for a connection (max " + maxSize + ")");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection", e);
+            }
+            try {
+                PooledConnection pc;
+                while ((pc = idle.pollFirst()) != null) {
+                    if (isUsable(pc)) {
+                        return pc.lease();
+                    }
+                    discard(pc);
+                }
+                return openPhysical().lease();
+            } catch (SQLException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        int openConnections() { return open.get(); }
+        int idleConnections() { return idle.size(); }
+        int activeConnections() { return maxSize - permits.availablePermits(); }
+        int maxSize() { return maxSize; }
+        long statementHits() { return statementHits.sum(); }
+        long statementMisses() { return statementMisses.sum(); }
+        long leakedConnections() { return leakedConnections.sum(); }
+        long leakedStatements() { return leakedStatements.sum(); }
+
+        @Override
+        public void close() {
+            closed = true;
+            housekeeper.shutdownNow();
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                discard(pc);
+            }
+        }
+
+        private boolean isUsable(PooledConnection pc) {
+            // Skip the ping for connections that were in use a moment ago.
+            if (System.currentTimeMillis() - pc.lastUsed < validationIntervalMillis) {
+                return true;
+            }
+            try {
+                return pc.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private PooledConnection openPhysical() throws SQLException {
+            PooledConnection pc = new PooledConnection(DriverManager.getConnection(url, user, password));
+            open.incrementAndGet();
+            return pc;
+        }
+
+        private void discard(PooledConnection pc) {
+            open.decrementAndGet();
+            try {
+                pc.physical.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        private void release(PooledConnection pc) {
+            leased.remove(pc);
+            try {
+                pc.closeOutstanding();
+                if (closed || pc.broken || pc.physical.isClosed()) {
+                    discard(pc);
+                    return;
+                }
+                if (!pc.physical.getAutoCommit()) {
+                    pc.physical.rollback();
+                    pc.physical.setAutoCommit(true);
+                }
+                pc.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pc);
+            } catch (SQLException e) {
+                discard(pc);
+            } finally {
+                permits.release();
+            }
+        }
+
+        // Evicts connections idle past the timeout (oldest sit at the tail) and tops the pool back up to minSize.
+        private void maintain() {
+            long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+            PooledConnection oldest;
+            while (open.get() > minSize && (oldest = idle.peekLast()) != null && oldest.lastUsed < cutoff) {
+                if (idle.removeLastOccurrence(oldest)) {
+                    discard(oldest);
+                }
+            }
+            while (!closed && open.get() < minSize && permits.tryAcquire()) {
+                try {
+                    PooledConnection pc = openPhysical();
+                    pc.lastUsed = System.currentTimeMillis();
+                    idle.offerLast(pc);
+                } catch (SQLException e) {
+                    break;
+                } finally {
+                    permits.release();
+                }
+            }
+        }
+
+        private void reportLeaks() {
+            long now = System.currentTimeMillis();
+            for (PooledConnection pc : leased) {
+                if (!pc.leakReported && now - pc.leasedAt > leakDetectionMillis) {
+                    pc.leakReported = true;
+                    leakedConnections.increment();
+                    System.err.println("Possible connection leak: held for " + (now - pc.leasedAt) + " ms");
+                    if (pc.leasedBy != null) {
+                        pc.leasedBy.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        // Identifies interchangeable statements; prepareStatement overloads taking column arrays are never cached.
+        private record StatementKey(String sql, int resultSetType, int resultSetConcurrency, int autoGeneratedKeys) {
+            static StatementKey of(Object[] args) {
+                String sql = (String) args[0];
+                return switch (args.length) {
+                    case 1 -> new StatementKey(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, Statement.NO_GENERATED_KEYS);
+                    case 2 -> args[1] instanceof Integer keys
+                            ? new StatementKey(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, keys) : null;
+                    case 3 -> new StatementKey(sql, (Integer) args[1], (Integer) args[2], Statement.NO_GENERATED_KEYS);
+                    default -> null;
+                };
+            }
+
+            PreparedStatement prepare(Connection conn) throws SQLException {
+                return autoGeneratedKeys != Statement.NO_GENERATED_KEYS
+                        ? conn.prepareStatement(sql, autoGeneratedKeys)
+                        : conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            }
+        }
+
+        private class PooledConnection {
+            final Connection physical;
+            volatile long lastUsed;
+            volatile boolean broken;
+            volatile long leasedAt;
+            volatile Throwable leasedBy;
+            volatile boolean leakReported;
+            // Idle statements in least-recently-used order; a statement is removed while it is handed out.
+            private final LinkedHashMap<StatementKey, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+            private final Set<CachedStatement> outstanding = Collections.newSetFromMap(new IdentityHashMap<>());
+
+            PooledConnection(Connection physical) {
+                this.physical = physical;
+            }
+
+            Connection lease() {
+                leasedAt = System.currentTimeMillis();
+                leasedBy = leakDetectionMillis > 0 ? new Throwable("Connection borrowed here") : null;
+                leakReported = false;
+                leased.add(this);
+                InvocationHandler handler = new InvocationHandler() {
+                    private boolean returned;
+
+                    @Override
+                    public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!returned) {
+                                    returned = true;
+                                    release(PooledConnection.this);
+                                }
+                                return null;
+                            case "isClosed":
+                                return returned || physical.isClosed();
+                            case "unwrap":
+                                if (((Class<?>) args[0]).isInstance(proxy)) {
+                                    return proxy;
+                                }
+                                break;
+                            case "prepareStatement":
+                                StatementKey key = returned || statementCacheSize <= 0 ? null : StatementKey.of(args);
+                                if (key != null) {
+                                    return checkout(key, (Connection) proxy);
+                                }
+                                break;
+                            default:
+                                break;
+                        }
+                        if (returned) {
+                            throw new SQLException("Connection has already been returned to the pool");
+                        }
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw failed(e.getCause());
+                        }
+                    }
+                };
+                return (Connection) Proxy.newProxyInstance(
+                        Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+            }
+
+            Throwable failed(Throwable cause) {
+                if (cause instanceof SQLException sqlException) {
+                    String state = sqlException.getSQLState();
+                    if (state != null && state.startsWith("08")) {
+                        broken = true;
+                    }
+                }
+                return cause;
+            }
+
+            private synchronized PreparedStatement checkout(StatementKey key, Connection owner) throws SQLException {
+                PreparedStatement stmt = statements.remove(key);
+                if (stmt != null) {
+                    statementHits.increment();
+                } else {
+                    statementMisses.increment();
+                    try {
+                        stmt = key.prepare(physical);
+                    } catch (SQLException e) {
+                        throw (SQLException) failed(e);
+                    }
+                }
+                CachedStatement cached = new CachedStatement(key, stmt, owner);
+                outstanding.add(cached);
+                return cached.proxy;
+            }
+
+            // Called by a CachedStatement once it has been reset; keeps it unless the cache is full of newer ones.
+            private synchronized void checkin(CachedStatement cached, boolean reusable) {
+                outstanding.remove(cached);
+                if (reusable && !broken && !statements.containsKey(cached.key)) {
+                    statements.put(cached.key, cached.physical);
+                    if (statements.size() <= statementCacheSize) {
+                        return;
+                    }
+                    var eldest = statements.entrySet().iterator();
+                    PreparedStatement evicted = eldest.next().getValue();
+                    eldest.remove();
+                    closeQuietly(evicted);
+                    return;
+                }
+                closeQuietly(cached.physical);
+            }
+
+            private void closeOutstanding() {
+                List<CachedStatement> leaked;
+                synchronized (this) {
+                    leaked = List.copyOf(outstanding);
+                }
+                for (CachedStatement cached : leaked) {
+                    leakedStatements.increment();
+                    if (leakDetectionMillis > 0) {
+                        System.err.println("Statement left open when its connection was closed: " + cached.key.sql());
+                    }
+                    cached.close();
+                }
+            }
+
+            private static void closeQuietly(Statement stmt) {
+                try {
+                    stmt.close();
+                } catch (SQLException ignored) {
+                }
+            }
+
+            // A handed-out statement. Closing it closes its result sets and returns it to the cache, unless the
+            // caller changed fetch size, timeouts or similar settings, in which case it is really closed.
+            private final class CachedStatement implements InvocationHandler {
+                final StatementKey key;
+                final PreparedStatement physical;
+                final PreparedStatement proxy;
+                private final Connection owner;
+                private final List<ResultSet> results = new ArrayList<>(1);
+                private boolean closed, batched, reconfigured;
+
+                CachedStatement(StatementKey key, PreparedStatement physical, Connection owner) {
+                    this.key = key;
+                    this.physical = physical;
+                    this.owner = owner;
+                    this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                            PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, this);
+                }
+
+                @Override
+                public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    switch (name) {
+                        case "close":
+                            close();
+                            return null;
+                        case "isClosed":
+                            return closed;
+                        case "getConnection":
+                            return owner;
+                        default:
+                            break;
+                    }
+                    if (closed) {
+                        throw new SQLException("Statement is closed");
+                    }
+                    if (name.equals("addBatch")) {
+                        batched = true;
+                    } else if (name.startsWith("set") && !name.equals("setNull") && method.getDeclaringClass() == Statement.class
+                            || name.equals("closeOnCompletion")) {
+                        reconfigured = true;
+                    }
+                    try {
+                        Object result = method.invoke(physical, args);
+                        if (result instanceof ResultSet rs) {
+                            if (results.size() >= 8) {
+                                results.removeIf(CachedStatement::isClosed);
+                            }
+                            results.add(rs);
+                        }
+                        return result;
+                    } catch (InvocationTargetException e) {
+                        throw failed(e.getCause());
+                    }
+                }
+
+                private static boolean isClosed(ResultSet rs) {
+                    try {
+                        return rs.isClosed();
+                    } catch (SQLException e) {
+                        return true;
+                    }
+                }
+
+                void close() {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    boolean reusable = !reconfigured;
+                    try {
+                        for (ResultSet rs : results) {
+                            rs.close();
+                        }
+                        if (reusable) {
+                            physical.clearParameters();
+                            if (batched) {
+                                physical.clearBatch();
+                            }
+                        }
+                    } catch (SQLException e) {
+                        reusable = false;
+                    }
+                    checkin(this, reusable);
+                }
+            }
+        }
     }
 }
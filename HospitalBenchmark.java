@@ -0,0 +1,948 @@
+// HOSPITAL MANAGEMENT SYSTEM - BENCHMARK HARNESS
+// Times the data-access paths of HospitalApp against the database named by -Dhospital.db.url.
+// Point it at a scratch schema: the benchmark seeds rows and drops/recreates indexes.
+//   java -Dhospital.db.url=jdbc:mysql://localhost:3306/hospital_bench?createDatabaseIfNotExist=true HospitalBenchmark schema 100000
+//   java -Dhospital.db.url=... HospitalBenchmark slots 32
+//   java -Dhospital.db.url=... HospitalBenchmark availability 100000
+//   java -Dhospital.db.url=... HospitalBenchmark paths 1000,100000,1000000
+//   java -Dhospital.db.url=... -Dload.ratePerSecond=50 HospitalBenchmark load 40
+//   java -Dhospital.db.url=... HospitalBenchmark check [all|name,name,...]
+// "paths" runs JMH-style warmup and measurement iterations (bench.warmupIterations, bench.iterations,
+// bench.iterationMillis), each path in bench.forks fresh JVMs, and reports throughput and allocation per
+// data-access path at each table size.
+// "load" simulates that many receptionists at once (see load()) and appends one JSON line per run to
+// load.out (hospital-load.jsonl) so runs can be compared.
+// "check" asserts instead of timing: each check prints PASS or ends the run with an AssertionError (exit status 1).
+//   pool   pooled vs. DriverManager latency per operation. Needs only a JDBC 4 driver, so it also runs against an
+//          embedded MySQL-mode database: -Dhospital.db.url=jdbc:h2:mem:check;MODE=MySQL with H2 on the classpath.
+//   slots  check.threads bookers racing over the CAS bitmaps and then the database; no slot may be booked twice.
+//   routing  read routing against two databases: hospital.db.url as the primary and -Dcheck.replicaUrl (a second
+//          scratch schema) as a replica whose replication the check plays by copying heartbeats across.
+//   leaks  the pool's leak detection and statement cache on a one-connection pool; runs wherever "pool" does.
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class HospitalBenchmark {
+    static final int DOCTORS = 100;
+    static final int RUNS = 21;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "schema";
+        String arg = args.length > 1 ? args[1] : null;
+        switch (mode) {
+            case "schema" -> schema(arg != null ? Integer.parseInt(arg) : 100_000);
+            case "slots" -> slots(arg != null ? Integer.parseInt(arg) : 32);
+            case "availability" -> availability(arg != null ? Integer.parseInt(arg) : 100_000);
+            case "paths" -> paths(arg != null ? arg : "1000,100000,1000000");
+            case "path" -> path(Integer.parseInt(args[1]), args[2]);
+            case "load" -> load(arg != null ? Integer.parseInt(arg) : 20);
+            case "check" -> check(arg != null ? arg : "all");
+            default -> {
+                System.err.println("Usage: java HospitalBenchmark schema [appointmentRows] | slots [threads] | availability [appointmentRows]"
+                        + " | paths [size,size,...] | load [receptionists] | check [all|name,...]");
+                System.exit(2);
+            }
+        }
+        HospitalApp.POOL.close();
+    }
+
+    // Startup cost of setupDatabase() with pending vs. no pending migrations, and the indexed
+    // lookups with and without the migration-2 indexes.
+    static void schema(int rows) throws Exception {
+        long start = System.nanoTime();
+        HospitalApp.setupDatabase();
+        double migrateMs = (System.nanoTime() - start) / 1e6;
+        double[] warm = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            start = System.nanoTime();
+            HospitalApp.setupDatabase();
+            warm[i] = (System.nanoTime() - start) / 1e6;
+        }
+        System.out.printf("startup  first setupDatabase: %8.2f ms   schema current (median): %8.3f ms%n", migrateMs, median(warm));
+
+        seed(rows);
+        String[] queries = {
+            "SELECT doctor_id, name FROM doctor WHERE specialization = 'Dentist' AND availability = TRUE",
+            "SELECT COUNT(*) FROM appointment WHERE doctor_id = 7 AND appointment_date = '" + LocalDate.now().plusDays(3) + "'",
+            "SELECT COUNT(*) FROM appointment WHERE appointment_date BETWEEN '" + LocalDate.now() + "' AND '" + LocalDate.now().plusDays(7) + "'"
+        };
+        double[] indexed = new double[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            indexed[q] = timeQuery(queries[q]);
+        }
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP INDEX idx_doctor_specialization_availability ON doctor");
+            stmt.executeUpdate("DROP INDEX idx_appointment_doctor_date ON appointment");
+            stmt.executeUpdate("DROP INDEX idx_appointment_date ON appointment");
+        }
+        double[] scanned = new double[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            scanned[q] = timeQuery(queries[q]);
+        }
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            HospitalApp.MIGRATIONS.get(1).step().apply(stmt);
+        }
+        for (int q = 0; q < queries.length; q++) {
+            System.out.printf("query    no index: %8.3f ms   indexed: %8.3f ms   %s%n", scanned[q], indexed[q], queries[q]);
+        }
+    }
+
+    // Many threads booking the same doctor/day: first the bare CAS bitmap, then end to end through the database.
+    // Both runs should end with every slot booked exactly once; "check slots" asserts it.
+    static void slots(int threads) throws Exception {
+        int days = 2_000;
+        int slotsPerDay = 512;
+        HospitalApp.SlotScheduler.DaySlots[] bitmaps = new HospitalApp.SlotScheduler.DaySlots[days];
+        for (int d = 0; d < days; d++) {
+            bitmaps[d] = new HospitalApp.SlotScheduler.DaySlots(LocalDate.now().atStartOfDay(), 1, slotsPerDay);
+        }
+        AtomicInteger claimed = new AtomicInteger();
+        double seconds = race(threads, () -> {
+            int mine = 0;
+            for (HospitalApp.SlotScheduler.DaySlots day : bitmaps) {
+                for (int slot = day.firstFree(0); slot >= 0; slot = day.firstFree(slot + 1)) {
+                    if (day.claim(slot)) {
+                        mine++;
+                    }
+                }
+            }
+            claimed.addAndGet(mine);
+        });
+        System.out.printf("in-memory  %d threads: %d/%d slots claimed, double bookings: %d, %.0f claims/s%n",
+                threads, claimed.get(), days * slotsPerDay, claimed.get() - days * slotsPerDay, claimed.get() / seconds);
+
+        HospitalApp.setupDatabase();
+        seed(1_000);
+        int doctorId = 1;
+        int patientId;
+        LocalDate date = LocalDate.now().plusYears(1);
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            patientId = ids(stmt, "SELECT MIN(patient_id) FROM patient")[0];
+        }
+        clearDay(doctorId, date);
+        HospitalApp.SlotScheduler scheduler = new HospitalApp.SlotScheduler(HospitalApp::getConnection);
+        AtomicInteger booked = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        seconds = race(threads, () -> {
+            while (true) {
+                try {
+                    scheduler.bookFirstFree(patientId, doctorId, date);
+                    booked.incrementAndGet();
+                } catch (HospitalApp.SlotUnavailableException e) {
+                    return;
+                } catch (SQLException e) {
+                    errors.incrementAndGet();
+                    return;
+                }
+            }
+        });
+        int[] counts = dayCounts(doctorId, date);
+        System.out.printf("database   %d threads: %d bookings, %d distinct slots, double bookings: %d, errors: %d, %.0f bookings/s%n",
+                threads, counts[0], counts[1], counts[0] - counts[1], errors.get(), booked.get() / seconds);
+    }
+
+    // Latency of "first 5 free dentist slots after T" once the index is warm.
+    static void availability(int rows) throws Exception {
+        HospitalApp.setupDatabase();
+        seed(rows);
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+        long start = System.nanoTime();
+        HospitalApp.AVAILABILITY.firstFree(HospitalApp.DENTIST, tomorrow.atStartOfDay(), 5);
+        double coldMs = (System.nanoTime() - start) / 1e6;
+        int calls = 100_000;
+        start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            HospitalApp.AVAILABILITY.firstFree(HospitalApp.DENTIST, tomorrow.atTime(8 + i % 9, 0), 5);
+        }
+        double meanMicros = (System.nanoTime() - start) / 1e3 / calls;
+        System.out.printf("availability  cold (loads index): %.2f ms   warm mean: %.2f us   first: %s%n", coldMs, meanMicros,
+                HospitalApp.AVAILABILITY.firstFree(HospitalApp.DENTIST, tomorrow.atStartOfDay(), 5));
+    }
+
+    interface Check {
+        // A one-line summary of what was verified; failures throw AssertionError.
+        String run() throws Exception;
+    }
+
+    static void check(String names) throws Exception {
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("pool", HospitalBenchmark::checkPool);
+        checks.put("slots", HospitalBenchmark::checkSlots);
+        checks.put("routing", HospitalBenchmark::checkRouting);
+        checks.put("leaks", HospitalBenchmark::checkLeaks);
+        List<String> selected = names.equals("all") ? new ArrayList<>(checks.keySet()) : Arrays.asList(names.split(","));
+        for (String name : selected) {
+            Check check = checks.get(name.trim());
+            if (check == null) {
+                throw new IllegalArgumentException("Unknown check " + name + "; known: " + checks.keySet());
+            }
+            System.out.printf("PASS %-8s %s%n", name.trim(), check.run());
+        }
+    }
+
+    static void expect(boolean ok, String failure) {
+        if (!ok) {
+            throw new AssertionError(failure);
+        }
+    }
+
+    // Borrowing from the pool must be cheaper per operation than opening a connection with DriverManager.
+    // Both paths run "SELECT 1" on a fresh borrow, interleaved so drift on the server affects them alike.
+    static String checkPool() throws Exception {
+        int operations = Integer.getInteger("check.operations", 200);
+        double[] direct = new double[operations];
+        double[] pooled = new double[operations];
+        try (HospitalApp.ConnectionPool pool = new HospitalApp.ConnectionPool(
+                HospitalApp.DB_URL, HospitalApp.DB_USER, HospitalApp.DB_PASSWORD)) {
+            for (int i = -operations / 4; i < operations; i++) {
+                long start = System.nanoTime();
+                try (Connection conn = DriverManager.getConnection(HospitalApp.DB_URL, HospitalApp.DB_USER, HospitalApp.DB_PASSWORD)) {
+                    selectOne(conn);
+                }
+                long middle = System.nanoTime();
+                try (Connection conn = pool.getConnection()) {
+                    selectOne(conn);
+                }
+                long end = System.nanoTime();
+                if (i >= 0) {
+                    direct[i] = (middle - start) / 1e3;
+                    pooled[i] = (end - middle) / 1e3;
+                }
+            }
+        }
+        double directMicros = median(direct);
+        double pooledMicros = median(pooled);
+        expect(pooledMicros < directMicros, String.format(Locale.ROOT,
+                "pooled median %.1f us is not below DriverManager's %.1f us", pooledMicros, directMicros));
+        return String.format(Locale.ROOT, "median per operation over %d: DriverManager %.1f us, pool %.1f us (%.1fx)",
+                operations, directMicros, pooledMicros, directMicros / pooledMicros);
+    }
+
+    // SlotScheduler under contention: check.threads threads claim bits and then book through the database, and
+    // every slot must end up taken exactly once. A duplicate key from "another process" must give the bit back,
+    // and a zero slot length must be refused.
+    static String checkSlots() throws Exception {
+        int threads = Integer.getInteger("check.threads", 16);
+        HospitalApp.SlotScheduler.DaySlots[] bitmaps = new HospitalApp.SlotScheduler.DaySlots[200];
+        for (int d = 0; d < bitmaps.length; d++) {
+            bitmaps[d] = new HospitalApp.SlotScheduler.DaySlots(LocalDate.now().atStartOfDay(), 1, 512);
+        }
+        AtomicInteger claimed = new AtomicInteger();
+        race(threads, () -> {
+            for (HospitalApp.SlotScheduler.DaySlots day : bitmaps) {
+                for (int slot = 0; slot < day.slots; slot++) {
+                    if (day.claim(slot)) {
+                        claimed.incrementAndGet();
+                    }
+                }
+            }
+        });
+        int slots = bitmaps.length * 512;
+        expect(claimed.get() == slots, "in-memory: " + claimed.get() + " claims succeeded for " + slots + " slots");
+        for (HospitalApp.SlotScheduler.DaySlots day : bitmaps) {
+            expect(day.booked() == day.slots && day.firstFree(0) == -1, "in-memory: a day was left with free slots");
+        }
+        try {
+            new HospitalApp.SlotScheduler.DaySlots(LocalDate.now().atStartOfDay(), 0, 0);
+            throw new AssertionError("DaySlots accepted 0-minute slots");
+        } catch (IllegalArgumentException expected) {
+            // Refused, as it should be.
+        }
+
+        HospitalApp.setupDatabase();
+        seed(1_000);
+        int doctorId;
+        int patientId;
+        LocalDate date = LocalDate.now().plusYears(3);
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            doctorId = ids(stmt, "SELECT MIN(doctor_id) FROM doctor")[0];
+            patientId = ids(stmt, "SELECT MIN(patient_id) FROM patient")[0];
+        }
+        clearDay(doctorId, date);
+        HospitalApp.SlotScheduler scheduler = new HospitalApp.SlotScheduler(HospitalApp::getConnection);
+        int daySlots = scheduler.day(doctorId, date).slots;
+        AtomicInteger booked = new AtomicInteger();
+        List<Exception> errors = new CopyOnWriteArrayList<>();
+        race(threads, () -> {
+            while (true) {
+                try {
+                    scheduler.bookFirstFree(patientId, doctorId, date);
+                    booked.incrementAndGet();
+                } catch (HospitalApp.SlotUnavailableException e) {
+                    return;
+                } catch (SQLException e) {
+                    errors.add(e);
+                    return;
+                }
+            }
+        });
+        expect(errors.isEmpty(), "database: booking failed: " + errors);
+        int[] counts = dayCounts(doctorId, date);
+        expect(counts[0] == counts[1], "database: " + (counts[0] - counts[1]) + " double bookings");
+        expect(counts[0] == daySlots && booked.get() == daySlots,
+                "database: " + booked.get() + " bookings reported, " + counts[0] + " rows for " + daySlots + " slots");
+
+        // Another process books a slot this scheduler still thinks is free.
+        clearDay(doctorId, date);
+        HospitalApp.SlotScheduler fresh = new HospitalApp.SlotScheduler(HospitalApp::getConnection);
+        HospitalApp.SlotScheduler.DaySlots day = fresh.day(doctorId, date);
+        LocalDateTime taken = day.startOf(0);
+        try (Connection conn = HospitalApp.getConnection()) {
+            new HospitalApp.AppointmentRepository().insert(conn, patientId, doctorId, taken, null);
+        }
+        try {
+            fresh.book(patientId, doctorId, taken);
+            throw new AssertionError("database: booked a slot that is already in the table");
+        } catch (HospitalApp.SlotUnavailableException expected) {
+            expect(day.isFree(0), "database: the bit stayed set after a duplicate key");
+        }
+        clearDay(doctorId, date);
+        return String.format(Locale.ROOT, "%d threads: %d/%d bits claimed once; %d/%d database slots booked once;"
+                + " duplicate key released its bit", threads, claimed.get(), slots, counts[0], daySlots);
+    }
+
+    // RoutingDataSource with one replica: reads may go there only while it has applied a heartbeat newer than the
+    // last write and no older than hospital.replicas.maxLagMillis. The check stands in for replication by copying
+    // replication_heartbeat from the primary to the replica, so it can stop replicating at will.
+    static String checkRouting() throws Exception {
+        String replicaUrl = System.getProperty("check.replicaUrl");
+        expect(replicaUrl != null, "routing: set -Dcheck.replicaUrl to a second scratch database to act as the replica");
+        long maxLagMillis = Long.getLong("check.maxLagMillis", 1_000L);
+        long checkMillis = 50;
+        System.setProperty("hospital.replicas.maxLagMillis", String.valueOf(maxLagMillis));
+        System.setProperty("hospital.replicas.checkMillis", String.valueOf(checkMillis));
+        HospitalApp.ConnectionPool primary = new HospitalApp.ConnectionPool(HospitalApp.DB_URL, HospitalApp.DB_USER, HospitalApp.DB_PASSWORD);
+        HospitalApp.ConnectionPool replicaPool = new HospitalApp.ConnectionPool(replicaUrl, HospitalApp.DB_USER, HospitalApp.DB_PASSWORD);
+        for (HospitalApp.ConnectionPool pool : List.of(primary, replicaPool)) {
+            try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS replication_heartbeat"
+                        + " (source_id CHAR(36) PRIMARY KEY, beat_nanos BIGINT NOT NULL)");
+            }
+        }
+        try (Connection conn = replicaPool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM replication_heartbeat");
+        }
+        HospitalApp.RoutingDataSource.Replica replica = new HospitalApp.RoutingDataSource.Replica(replicaUrl, replicaPool);
+        try (HospitalApp.RoutingDataSource routing = new HospitalApp.RoutingDataSource(primary, List.of(replica))) {
+            Thread.sleep(checkMillis * 4);
+            expect(!readsReplica(routing, replica), "routing: read from a replica that has applied no heartbeat");
+
+            copyHeartbeats(primary, replicaPool);
+            expect(awaitReplica(routing, replica, maxLagMillis), "routing: a replica with a fresh heartbeat was not used");
+
+            try (Connection conn = routing.getConnection();
+                 PreparedStatement write = conn.prepareStatement("DELETE FROM replication_heartbeat WHERE source_id = 'none'")) {
+                write.executeUpdate();
+            }
+            expect(!readsReplica(routing, replica), "routing: read from a replica that has not applied the last write");
+
+            // A heartbeat taken after the write, once replicated, shows the replica has caught up with it.
+            Thread.sleep(checkMillis * 4);
+            copyHeartbeats(primary, replicaPool);
+            expect(awaitReplica(routing, replica, maxLagMillis), "routing: a replica that caught up with the write was not used");
+
+            Thread.sleep(maxLagMillis + checkMillis * 4);
+            expect(!readsReplica(routing, replica), "routing: read from a replica lagging past maxLagMillis");
+            return String.format(Locale.ROOT, "maxLag %d ms: no heartbeat, unapplied write and stale heartbeat read the"
+                    + " primary; caught-up replica served %d reads", maxLagMillis, replica.reads.sum());
+        } finally {
+            System.clearProperty("hospital.replicas.maxLagMillis");
+            System.clearProperty("hospital.replicas.checkMillis");
+        }
+    }
+
+    // ConnectionPool bookkeeping with hospital.pool.leakDetectionMillis set: a connection held past it is reported
+    // once, a statement left open when its connection goes back is closed and counted, and the same SQL prepared
+    // again on the same physical connection comes from the statement cache. One connection, so every borrow
+    // gets the same physical one.
+    static String checkLeaks() throws Exception {
+        long leakMillis = 200;
+        System.setProperty("hospital.pool.leakDetectionMillis", String.valueOf(leakMillis));
+        try (HospitalApp.ConnectionPool pool = new HospitalApp.ConnectionPool(HospitalApp.DB_URL, HospitalApp.DB_USER,
+                HospitalApp.DB_PASSWORD, 1, 1, 300_000L, 5_000L, 1_000L)) {
+            long heldMillis;
+            try (Connection conn = pool.getConnection()) {
+                selectOne(conn);
+                long start = System.currentTimeMillis();
+                while (pool.leakedConnections() == 0 && System.currentTimeMillis() - start < leakMillis * 10) {
+                    Thread.sleep(leakMillis / 4);
+                }
+                heldMillis = System.currentTimeMillis() - start;
+            }
+            expect(pool.leakedConnections() == 1, "leaks: a connection held " + heldMillis + " ms was reported "
+                    + pool.leakedConnections() + " times, expected once");
+
+            long leakedBefore = pool.leakedStatements();
+            PreparedStatement left;
+            try (Connection conn = pool.getConnection()) {
+                left = conn.prepareStatement("SELECT 1");
+                left.executeQuery().next();
+            }
+            expect(pool.leakedStatements() == leakedBefore + 1, "leaks: a statement left open was not counted");
+            expect(left.isClosed(), "leaks: a statement left open is still open after its connection was returned");
+
+            long hitsBefore = pool.statementHits();
+            try (Connection conn = pool.getConnection()) {
+                for (int i = 0; i < 2; i++) {
+                    try (PreparedStatement stmt = conn.prepareStatement("SELECT 2"); ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                    }
+                }
+            }
+            expect(pool.statementHits() > hitsBefore, "leaks: preparing the same SQL twice missed the statement cache");
+            return String.format(Locale.ROOT, "connection held past %d ms reported once; open statement closed and"
+                    + " counted; repeated prepare hit the cache (%d hits)", leakMillis, pool.statementHits() - hitsBefore);
+        } finally {
+            System.clearProperty("hospital.pool.leakDetectionMillis");
+        }
+    }
+
+    // Whether the next read is routed to the replica.
+    static boolean readsReplica(HospitalApp.RoutingDataSource routing, HospitalApp.RoutingDataSource.Replica replica) throws SQLException {
+        long before = replica.reads.sum();
+        try (Connection conn = routing.readConnection()) {
+            selectOne(conn);
+        }
+        return replica.reads.sum() > before;
+    }
+
+    // The replica checker polls every hospital.replicas.checkMillis; give it a few rounds to see a copied heartbeat.
+    static boolean awaitReplica(HospitalApp.RoutingDataSource routing, HospitalApp.RoutingDataSource.Replica replica,
+                                long timeoutMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!readsReplica(routing, replica)) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    static void copyHeartbeats(HospitalApp.ConnectionPool from, HospitalApp.ConnectionPool to) throws SQLException {
+        try (Connection source = from.getConnection();
+             Statement read = source.createStatement();
+             ResultSet rs = read.executeQuery("SELECT source_id, beat_nanos FROM replication_heartbeat");
+             Connection target = to.getConnection()) {
+            try (Statement clear = target.createStatement()) {
+                clear.executeUpdate("DELETE FROM replication_heartbeat");
+            }
+            try (PreparedStatement insert = target.prepareStatement(
+                    "INSERT INTO replication_heartbeat (source_id, beat_nanos) VALUES (?, ?)")) {
+                while (rs.next()) {
+                    insert.setString(1, rs.getString(1));
+                    insert.setLong(2, rs.getLong(2));
+                    insert.executeUpdate();
+                }
+            }
+        }
+    }
+
+    static void clearDay(int doctorId, LocalDate date) throws SQLException {
+        try (Connection conn = HospitalApp.getConnection();
+             PreparedStatement clear = conn.prepareStatement("DELETE FROM appointment WHERE doctor_id = ? AND appointment_date = ?")) {
+            clear.setInt(1, doctorId);
+            clear.setDate(2, Date.valueOf(date));
+            clear.executeUpdate();
+        }
+    }
+
+    // {appointments, distinct slots} booked for the doctor on date.
+    static int[] dayCounts(int doctorId, LocalDate date) throws SQLException {
+        try (Connection conn = HospitalApp.getConnection();
+             PreparedStatement count = conn.prepareStatement(
+                     "SELECT COUNT(*), COUNT(DISTINCT slot_start) FROM appointment WHERE doctor_id = ? AND appointment_date = ?")) {
+            count.setInt(1, doctorId);
+            count.setDate(2, Date.valueOf(date));
+            try (ResultSet rs = count.executeQuery()) {
+                rs.next();
+                return new int[]{rs.getInt(1), rs.getInt(2)};
+            }
+        }
+    }
+
+    static void selectOne(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT 1")) {
+            rs.next();
+        }
+    }
+
+    interface Op {
+        void run(int i) throws Exception;
+    }
+
+    // The paths the front desk exercises, at each seeded appointment count (patients are a tenth of that).
+    // Views are measured by the queries they issue, since the windows themselves need a display.
+    // Like JMH, each path is measured in bench.forks fresh JVMs of its own (default 1), so JIT profiles, heap
+    // state and pool contents left by one path cannot flatter or penalise the next; bench.forks=0 measures every
+    // path in this JVM instead. Every fork runs bench.warmupIterations unmeasured iterations first.
+    static void paths(String sizes) throws Exception {
+        HospitalApp.setupDatabase();
+        int forks = Integer.getInteger("bench.forks", 1);
+        System.out.printf("%-10s %-28s %14s %14s %14s%n", "rows", "path", "ops/s", "bytes/op", "MB/s alloc");
+        for (String size : sizes.split(",")) {
+            int rows = Integer.parseInt(size.trim());
+            seed(rows);
+            Map<String, Op> paths = paths(rows);
+            for (Map.Entry<String, Op> path : paths.entrySet()) {
+                if (forks == 0) {
+                    report(rows, path.getKey(), path.getValue());
+                }
+                for (int fork = 0; fork < forks; fork++) {
+                    fork("path", String.valueOf(rows), path.getKey());
+                }
+            }
+            update("DELETE FROM patient WHERE name = 'Bench'");
+        }
+    }
+
+    // The "path" mode a fork runs: one path against the already seeded tables.
+    static void path(int rows, String name) throws Exception {
+        Op op = paths(rows).get(name);
+        if (op == null) {
+            throw new IllegalArgumentException("Unknown path " + name);
+        }
+        report(rows, name, op);
+    }
+
+    static Map<String, Op> paths(int rows) throws SQLException {
+        int patientId;
+        int[] doctorIds;
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            patientId = ids(stmt, "SELECT MIN(patient_id) FROM patient")[0];
+            doctorIds = ids(stmt, "SELECT doctor_id FROM doctor");
+        }
+        HospitalApp.SlotScheduler scheduler = new HospitalApp.SlotScheduler(HospitalApp::getConnection);
+        LocalDate bookingDay = LocalDate.now().plusYears(2);
+        Map<String, Op> paths = new LinkedHashMap<>();
+        paths.put("patient insert", i -> update(
+                "INSERT INTO patient (name, age, gender, contact, selectedDoctor, doctor_id) VALUES ('Bench', 30, 'Female', '0911000000', '1: Dr. Rediet', 1)"));
+        paths.put("patient full read", i -> drain("SELECT patient_id, name, age, gender, contact, selectedDoctor FROM patient"));
+        paths.put("dentist roster (query)", i -> {
+            HospitalApp.ROSTER.invalidate(HospitalApp.DENTIST);
+            HospitalApp.ROSTER.available(HospitalApp.DENTIST);
+        });
+        paths.put("dentist roster (cached)", i -> HospitalApp.ROSTER.available(HospitalApp.DENTIST));
+        paths.put("appointment insert", i -> {
+            try {
+                scheduler.bookFirstFree(patientId, doctorIds[i % doctorIds.length], bookingDay.plusDays(i / (doctorIds.length * 16)));
+            } catch (HospitalApp.SlotUnavailableException ignored) {
+                // Day already full from an earlier run.
+            }
+        });
+        paths.put("ViewPatients first page", i -> {
+            drain("SELECT COUNT(*) FROM patient");
+            drain("SELECT patient_id, name, age, gender, contact, selectedDoctor FROM patient ORDER BY patient_id LIMIT 200");
+        });
+        paths.put("ViewDoctors load", i -> drain("SELECT doctor_id, name, specialization, availability FROM doctor"));
+        paths.put("ViewAppointments first page", i -> {
+            drain("SELECT COUNT(*) FROM appointment");
+            drain("SELECT appointment_id, patient_id, doctor_id, appointment_date, status FROM appointment ORDER BY appointment_id LIMIT 200");
+        });
+        return paths;
+    }
+
+    // Runs HospitalBenchmark with args in a new JVM with this one's options and classpath, and waits for it.
+    static void fork(String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(HospitalBenchmark.class.getName());
+        command.addAll(Arrays.asList(args));
+        int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (exit != 0) {
+            throw new IllegalStateException("Fork " + Arrays.toString(args) + " exited with status " + exit);
+        }
+    }
+
+    interface Flow {
+        void run(ThreadLocalRandom random) throws Exception;
+    }
+
+    // Each receptionist is a thread of its own running the front-desk flows, picked at random with the weights in
+    // load.mix, through the same HospitalService calls the windows make (views by the queries they issue).
+    // With load.ratePerSecond > 0 arrivals are open-loop (Poisson, split evenly across receptionists) and latency
+    // is counted from the scheduled start, so a backlog shows up as latency rather than as fewer requests; with
+    // 0 each receptionist starts its next flow as soon as the last one ends. The first load.warmupSeconds are
+    // not measured; the run then lasts load.seconds.
+    static void load(int receptionists) throws Exception {
+        Map<String, Integer> mix = weights(System.getProperty("load.mix",
+                "register=20,book=30,viewPatients=15,viewDoctors=15,viewAppointments=20"));
+        double rate = Double.parseDouble(System.getProperty("load.ratePerSecond", "0"));
+        long warmupNanos = Long.getLong("load.warmupSeconds", 10L) * 1_000_000_000L;
+        long measureNanos = Long.getLong("load.seconds", 60L) * 1_000_000_000L;
+        HospitalApp.setupDatabase();
+        seed(Integer.getInteger("load.seedAppointments", 10_000));
+        if (HospitalApp.REGISTRATIONS != null) {
+            HospitalApp.REGISTRATIONS.start();
+        }
+        int[] patientIds;
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            patientIds = ids(stmt, "SELECT patient_id FROM patient");
+        }
+
+        Map<String, Flow> flows = new LinkedHashMap<>();
+        // PatientRegistration: the dentist combo loads, then addPatient checks the contact and registers.
+        flows.put("register", random -> {
+            List<String> dentists = HospitalApp.SERVICE.availableDoctors(HospitalApp.DENTIST);
+            int doctorId = Integer.parseInt(dentists.get(random.nextInt(dentists.size())).split(":")[0]);
+            String name = "Load " + Thread.currentThread().getName() + " " + random.nextInt(1_000_000);
+            String contact = String.format("09%08d", random.nextInt(100_000_000));
+            HospitalApp.SERVICE.patientsWithContact(contact);
+            if (HospitalApp.REGISTRATIONS != null) {
+                HospitalApp.REGISTRATIONS.submit(name, 1 + random.nextInt(90), "Female", contact, doctorId);
+            } else {
+                HospitalApp.SERVICE.registerPatient(name, 1 + random.nextInt(90), "Female", contact, doctorId);
+            }
+        });
+        // DoctorSelection (roster and free-slot suggestions), then AppointmentBooking: find the patient by name, book.
+        flows.put("book", random -> {
+            List<String> dentists = HospitalApp.SERVICE.availableDoctors(HospitalApp.DENTIST);
+            HospitalApp.SERVICE.firstFreeSlots(HospitalApp.DENTIST, LocalDate.now().plusDays(1).atStartOfDay(), 5);
+            int doctorId = Integer.parseInt(dentists.get(random.nextInt(dentists.size())).split(":")[0]);
+            int seeded = random.nextInt(patientIds.length);
+            List<HospitalApp.HospitalService.PatientMatch> found = HospitalApp.SERVICE.findPatientsByName("Patient " + seeded, 5);
+            int patientId = found.isEmpty() ? patientIds[seeded] : found.get(0).patientId();
+            HospitalApp.SERVICE.bookAppointment(patientId, doctorId, LocalDate.now().plusDays(1 + random.nextInt(90)), null);
+        });
+        flows.put("viewPatients", random -> viewFirstPage("patient", "patient_id", HospitalApp.PatientRepository.COLUMNS, null));
+        flows.put("viewDoctors", random -> HospitalApp.DOCTORS.all());
+        flows.put("viewAppointments", random -> viewFirstPage("appointment", "appointment_id",
+                HospitalApp.AppointmentRepository.COLUMNS, "updated_at"));
+        if (!flows.keySet().containsAll(mix.keySet())) {
+            throw new IllegalArgumentException("load.mix may only name " + flows.keySet() + ": " + mix.keySet());
+        }
+        String[] names = mix.keySet().toArray(new String[0]);
+        int[] cumulative = new int[names.length];
+        int total = 0;
+        for (int i = 0; i < names.length; i++) {
+            total += mix.get(names[i]);
+            cumulative[i] = total;
+        }
+        int weightSum = total;
+
+        Map<String, HospitalApp.Metrics.Operation> ops = new LinkedHashMap<>();
+        for (String name : names) {
+            ops.put(name, HospitalApp.Metrics.operation("load." + name));
+        }
+        Map<String, LongAdder> errorTypes = new ConcurrentHashMap<>();
+        double meanGapNanos = rate > 0 ? receptionists * 1e9 / rate : 0;
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + measureNanos;
+        List<Thread> desk = new ArrayList<>(receptionists);
+        for (int r = 0; r < receptionists; r++) {
+            Thread receptionist = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long next = start + (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+                while (true) {
+                    if (rate > 0) {
+                        long wait;
+                        while ((wait = next - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    } else {
+                        next = System.nanoTime();
+                    }
+                    if (next - end >= 0) {
+                        return;
+                    }
+                    int pick = random.nextInt(weightSum);
+                    int op = 0;
+                    while (cumulative[op] <= pick) {
+                        op++;
+                    }
+                    boolean failed = false;
+                    try {
+                        flows.get(names[op]).run(random);
+                    } catch (Exception e) {
+                        failed = true;
+                        if (next - measureFrom >= 0) {
+                            errorTypes.computeIfAbsent(names[op] + ":" + e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+                        }
+                    }
+                    if (next - measureFrom >= 0) {
+                        ops.get(names[op]).record(System.nanoTime() - next, 0, failed);
+                    }
+                    if (rate > 0) {
+                        next += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+                    }
+                }
+            }, "receptionist-" + r);
+            receptionist.setDaemon(true);
+            receptionist.start();
+            desk.add(receptionist);
+        }
+        for (Thread receptionist : desk) {
+            receptionist.join();
+        }
+        double seconds = measureNanos / 1e9;
+
+        System.out.printf("%-18s %9s %7s %9s %9s %9s %9s %9s%n", "operation", "count", "errors", "ops/s", "p50_ms", "p95_ms", "p99_ms", "max_ms");
+        StringBuilder json = new StringBuilder(String.format(Locale.ROOT,
+                "{\"run\": %s, \"receptionists\": %d, \"ratePerSecond\": %s, \"seconds\": %s, \"poolMaxSize\": %d, \"operations\": {",
+                HospitalApp.HttpApi.quote(LocalDateTime.now().withNano(0).toString()), receptionists, rate, seconds,
+                HospitalApp.POOL.maxSize()));
+        long count = 0, errors = 0;
+        String separator = "";
+        for (Map.Entry<String, HospitalApp.Metrics.Operation> entry : ops.entrySet()) {
+            HospitalApp.Metrics.Operation op = entry.getValue();
+            count += op.getCount();
+            errors += op.getErrors();
+            System.out.printf(Locale.ROOT, "%-18s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), op.getCount(), op.getErrors(),
+                    op.getCount() / seconds, op.getP50Micros() / 1e3, op.getP95Micros() / 1e3, op.getP99Micros() / 1e3, op.getMaxMicros() / 1e3);
+            json.append(separator).append(String.format(Locale.ROOT,
+                    "%s: {\"weight\": %d, \"count\": %d, \"errors\": %d, \"opsPerSecond\": %.2f,"
+                            + " \"p50Ms\": %.3f, \"p95Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f}",
+                    HospitalApp.HttpApi.quote(entry.getKey()), mix.get(entry.getKey()), op.getCount(), op.getErrors(),
+                    op.getCount() / seconds, op.getP50Micros() / 1e3, op.getP95Micros() / 1e3, op.getP99Micros() / 1e3,
+                    op.getMaxMicros() / 1e3));
+            separator = ", ";
+        }
+        System.out.printf(Locale.ROOT, "%-18s %9d %7d %9.1f%n", "total", count, errors, count / seconds);
+        json.append(String.format(Locale.ROOT, "}, \"count\": %d, \"errors\": %d, \"opsPerSecond\": %.2f, \"errorTypes\": {",
+                count, errors, count / seconds));
+        separator = "";
+        for (Map.Entry<String, LongAdder> entry : errorTypes.entrySet()) {
+            System.out.printf("  %-40s %d%n", entry.getKey(), entry.getValue().sum());
+            json.append(separator).append(HospitalApp.HttpApi.quote(entry.getKey())).append(": ").append(entry.getValue().sum());
+            separator = ", ";
+        }
+        json.append("}}").append(System.lineSeparator());
+        Path out = Path.of(System.getProperty("load.out", "hospital-load.jsonl"));
+        Files.writeString(out, json, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        System.out.println("Appended results to " + out.toAbsolutePath());
+        if (HospitalApp.REGISTRATIONS != null) {
+            HospitalApp.REGISTRATIONS.close();
+        }
+    }
+
+    // What the paged views issue when a window opens: the count/max query, then the first page, from a replica if any.
+    static void viewFirstPage(String table, String keyColumn, String columns, String versionColumn) throws SQLException {
+        try (Connection conn = HospitalApp.readConnection(); Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*), MAX(" + keyColumn + ")"
+                    + (versionColumn == null ? "" : ", MAX(" + versionColumn + ")") + " FROM " + table)) {
+                rs.next();
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT " + columns + " FROM " + table + " ORDER BY " + keyColumn
+                    + " LIMIT " + Integer.getInteger("hospital.table.pageSize", 200))) {
+                int n = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    for (int c = 1; c <= n; c++) {
+                        rs.getObject(c);
+                    }
+                }
+            }
+        }
+    }
+
+    // Parses "name=weight,name=weight" in order; weights must be non-negative and not all zero.
+    static Map<String, Integer> weights(String spec) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight in load.mix: " + part);
+            }
+            if (weight > 0) {
+                weights.put(kv[0].trim(), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("load.mix has no positive weights: " + spec);
+        }
+        return weights;
+    }
+
+    static void report(int rows, String path, Op op) throws Exception {
+        int warmups = Integer.getInteger("bench.warmupIterations", 3);
+        int iterations = Integer.getInteger("bench.iterations", 5);
+        long iterationNanos = Long.getLong("bench.iterationMillis", 1_000L) * 1_000_000L;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int i = 0;
+        long ops = 0, nanos = 0, bytes = 0;
+        for (int iteration = 0; iteration < warmups + iterations; iteration++) {
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long end = start + iterationNanos;
+            long done = 0;
+            long now;
+            do {
+                op.run(i++);
+                done++;
+            } while ((now = System.nanoTime()) < end);
+            if (iteration >= warmups) {
+                ops += done;
+                nanos += now - start;
+                bytes += threads.getCurrentThreadAllocatedBytes() - allocated;
+            }
+        }
+        double seconds = nanos / 1e9;
+        System.out.printf("%-10d %-28s %14.1f %14.0f %14.1f%n", rows, path, ops / seconds, (double) bytes / ops, bytes / seconds / 1e6);
+    }
+
+    static void drain(String query) throws SQLException {
+        try (Connection conn = HospitalApp.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                for (int c = 1; c <= columns; c++) {
+                    rs.getObject(c);
+                }
+            }
+        }
+    }
+
+    static void update(String sql) throws SQLException {
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+
+    // Starts all threads together and returns the wall time in seconds until the last one finishes.
+    static double race(int threads, Runnable work) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                work.run();
+            });
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - begin) / 1e9;
+    }
+
+    // Tops the scratch schema up to the requested number of appointments (and rows/10 patients).
+    static void seed(int appointments) throws SQLException {
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            int doctors = count(stmt, "doctor");
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO doctor (name, specialization, availability) VALUES (?, ?, ?)")) {
+                for (int i = doctors; i < DOCTORS; i++) {
+                    insert.setString(1, "Dr. Bench " + i);
+                    insert.setString(2, i % 3 == 0 ? "Dentist" : "General");
+                    insert.setBoolean(3, i % 5 != 0);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            int patients = count(stmt, "patient");
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO patient (name, age, gender, contact, selectedDoctor, doctor_id) VALUES (?, ?, ?, ?, ?, ?)")) {
+                for (int i = patients; i < Math.max(1, appointments / 10); i++) {
+                    insert.setString(1, "Patient " + i);
+                    insert.setInt(2, 1 + i % 90);
+                    insert.setString(3, i % 2 == 0 ? "Male" : "Female");
+                    insert.setString(4, String.format("09%08d", i % 100_000_000));
+                    insert.setString(5, "1: Dr. Rediet");
+                    insert.setInt(6, 1);
+                    insert.addBatch();
+                    if (i % 1_000 == 999) {
+                        insert.executeBatch();
+                        conn.commit();
+                    }
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+            int[] doctorIds = ids(stmt, "SELECT doctor_id FROM doctor");
+            int[] patientIds = ids(stmt, "SELECT patient_id FROM patient");
+            int existing = count(stmt, "appointment");
+            LocalDate first = LocalDate.now().minusDays(365);
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO appointment (patient_id, doctor_id, appointment_date, status) VALUES (?, ?, ?, 'Scheduled')")) {
+                for (int i = existing; i < appointments; i++) {
+                    insert.setInt(1, patientIds[i % patientIds.length]);
+                    insert.setInt(2, doctorIds[(i * 31) % doctorIds.length]);
+                    insert.setDate(3, Date.valueOf(first.plusDays(i % 730)));
+                    insert.addBatch();
+                    if (i % 1_000 == 999) {
+                        insert.executeBatch();
+                        conn.commit();
+                    }
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+        }
+    }
+
+    static int count(Statement stmt, String table) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    static int[] ids(Statement stmt, String query) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery(query)) {
+            int[] ids = new int[16];
+            int n = 0;
+            while (rs.next()) {
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, n * 2);
+                }
+                ids[n++] = rs.getInt(1);
+            }
+            return Arrays.copyOf(ids, n);
+        }
+    }
+
+    // Median wall time of RUNS executions, each reading the full result.
+    static double timeQuery(String query) throws SQLException {
+        double[] times = new double[RUNS];
+        try (Connection conn = HospitalApp.getConnection(); Statement stmt = conn.createStatement()) {
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                try (ResultSet rs = stmt.executeQuery(query)) {
+                    while (rs.next()) {
+                        rs.getObject(1);
+                    }
+                }
+                times[i] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        return median(times);
+    }
+
+    static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,65 @@
+"""Reader for the columnar file written by `java HospitalApp --export [file]`.
+
+    import hospital_columnar
+    tables = hospital_columnar.load("hospital.hcol")   # {"patient": DataFrame, "doctor": ..., "appointment": ...,
+                                                       #  "appointment_archive": ...}
+
+Numeric blocks are memory-mapped, not read: only the columns you touch are paged in.
+The layout is described above ColumnarExporter in HospitalApp.java.
+"""
+import json
+
+import numpy as np
+import pandas as pd
+
+MAGIC = b"HCOL0001"
+_DTYPES = {1: "<u1", 2: "<u2", 4: "<u4", 8: "<u8"}
+
+
+def load(path):
+    raw = np.memmap(path, dtype=np.uint8, mode="r")
+    if bytes(raw[:8]) != MAGIC or bytes(raw[-8:]) != MAGIC:
+        raise ValueError(f"{path} is not a hospital columnar export")
+    footer_offset = int(raw[-16:-8].view("<i8")[0])
+    footer = json.loads(bytes(raw[footer_offset:-16]).decode("utf-8"))
+    return {table["name"]: _table(raw, table) for table in footer["tables"]}
+
+
+def _table(raw, table):
+    columns = {}
+    for i, column in enumerate(table["columns"]):
+        parts = [_column(raw, chunk["columns"][i], chunk["rows"], column["type"]) for chunk in table["chunks"]]
+        columns[column["name"]] = np.concatenate(parts) if parts else np.array([], dtype=object)
+    return pd.DataFrame(columns)
+
+
+def _packed(raw, block, rows):
+    width = block["width"]
+    stored = raw[block["offset"]:block["offset"] + rows * width].view(_DTYPES[width])
+    nulls = None if block["null_code"] is None else stored == block["null_code"]
+    return stored.astype(np.int64) + block["base"], nulls
+
+
+def _column(raw, block, rows, kind):
+    if kind == "string":
+        codes, nulls = _packed(raw, block["codes"], rows)
+        dictionary = block["dictionary"]
+        count = dictionary["count"]
+        offsets = raw[dictionary["offsets"]:dictionary["offsets"] + (count + 1) * 4].view("<i4")
+        data = bytes(raw[dictionary["data"]:dictionary["data"] + dictionary["length"]])
+        words = np.array([data[offsets[k]:offsets[k + 1]].decode("utf-8") for k in range(count)] + [None], dtype=object)
+        if nulls is not None:
+            codes = np.where(nulls, count, codes)
+        return words[codes]
+    values, nulls = _packed(raw, block, rows)
+    if kind == "bool":
+        values = values.astype(bool).astype(object) if nulls is not None else values.astype(bool)
+    elif kind == "date":
+        values = values.astype("datetime64[D]")
+    elif kind == "datetime":
+        values = values.astype("datetime64[ms]")
+    elif nulls is not None:
+        values = values.astype("float64")
+    if nulls is not None:
+        values[nulls] = None if kind == "bool" else np.datetime64("NaT") if kind in ("date", "datetime") else np.nan
+    return values
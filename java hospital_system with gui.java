@@ -2,76 +2,359 @@
 // Note: This is for review/educational purposes only. Not suitable for production use.
 // All package declarations are removed. Only one public class is allowed in Java, so all others are default (non-public).
 // Some class names may conflict; adjust as needed for your use case.
+// Database access goes through HospitalApp (HospitalApp.java), which must be compiled first and be on the classpath.
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 // --- DAO/PatientDAOo.java ---
+// SQL lives in HospitalApp.PatientRepository; this class adapts its rows to the Patient entity.
 class PatientDAOo {
+    // Registered in the selected doctor's clinic, or the home clinic when no doctor is picked.
     public static boolean insertPatient(Patient patient) {
-        String query = "INSERT INTO patients (first_name, last_name, gender, age, phone, address) VALUES (?, ?, ?, ?, ?, ?)";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-            stmt.setString(1, patient.getName());
-            stmt.setString(2, ""); // last_name not present in Patient class
-            stmt.setString(3, patient.getGender());
-            stmt.setInt(4, patient.getAge());
-            stmt.setString(5, patient.getContact());
-            stmt.setString(6, ""); // address not present in Patient class
-            int rowsInserted = stmt.executeUpdate();
-            return rowsInserted > 0;
+        int doctorId = HospitalApp.PatientRepository.doctorIdOf(patient.getSelectedDoctor());
+        HospitalApp.ShardMap.Shard clinic = doctorId > 0 ? DBConnection.SHARDS.find(doctorId) : null;
+        try {
+            int patientId = HospitalApp.Metrics.record("patients.insert", () -> DBConnection.SHARDS.on(
+                    clinic != null ? clinic : DBConnection.SHARDS.home(), () -> DBConnection.PATIENTS.insert(
+                    patient.getName(), patient.getAge(), patient.getGender(), patient.getContact(), patient.getSelectedDoctor())));
+            patient.setId(patientId);
+            DBConnection.SERVICE.indexPatient(patientId, patient.getName(), patient.getContact());
+            return true;
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return false;
     }
+    public static int insertPatients(Iterable<Patient> patients) {
+        return insertPatients(patients, 1_000, 10_000,
+                (patient, reason) -> System.err.println("Rejected " + patient.getName() + ": " + reason));
+    }
+    // Inserts in JDBC batches of batchSize, committing every rowsPerTransaction rows. Like insertPatient, each
+    // row goes to its selected doctor's clinic (the home clinic when no doctor is picked); every clinic the
+    // import touches gets its own connection, batch and transaction. A failing batch is rolled back to its
+    // savepoint and replayed row by row so only the offending rows are rejected. Returns the number of committed rows.
+    public static int insertPatients(Iterable<Patient> patients, int batchSize, int rowsPerTransaction,
+                                     BiConsumer<Patient, String> rejected) {
+        int[] committed = {0};
+        try {
+            HospitalApp.Metrics.record("patients.bulkInsert", () -> {
+                Map<HospitalApp.ShardMap.Shard, ClinicBatch> clinics = new LinkedHashMap<>();
+                try {
+                    for (Patient patient : patients) {
+                        int doctorId = HospitalApp.PatientRepository.doctorIdOf(patient.getSelectedDoctor());
+                        HospitalApp.ShardMap.Shard clinic = doctorId > 0 ? DBConnection.SHARDS.find(doctorId) : null;
+                        HospitalApp.ShardMap.Shard shard = clinic != null ? clinic : DBConnection.SHARDS.home();
+                        ClinicBatch target = clinics.get(shard);
+                        if (target == null) {
+                            target = new ClinicBatch(DBConnection.SHARDS.on(shard, HospitalApp::getConnection), batchSize);
+                            clinics.put(shard, target);
+                        }
+                        bindPatient(target.stmt, patient);
+                        target.stmt.addBatch();
+                        target.batch.add(patient);
+                        if (target.batch.size() >= batchSize) {
+                            target.uncommitted += flushBatch(target.conn, target.stmt, target.batch, rejected);
+                            if (target.uncommitted >= rowsPerTransaction) {
+                                committed[0] += target.commit();
+                            }
+                        }
+                    }
+                    for (ClinicBatch target : clinics.values()) {
+                        target.uncommitted += flushBatch(target.conn, target.stmt, target.batch, rejected);
+                        committed[0] += target.commit();
+                    }
+                    return committed[0];
+                } finally {
+                    for (ClinicBatch target : clinics.values()) {
+                        target.close();
+                    }
+                }
+            }, rows -> rows);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return committed[0];
+    }
+    // One clinic's share of a bulk import: its connection (autocommit off), insert statement and pending batch.
+    private static final class ClinicBatch implements AutoCloseable {
+        final Connection conn;
+        final PreparedStatement stmt;
+        final List<Patient> batch;
+        int uncommitted;
+
+        ClinicBatch(Connection conn, int batchSize) throws SQLException {
+            this.conn = conn;
+            try {
+                conn.setAutoCommit(false);
+                this.stmt = conn.prepareStatement(HospitalApp.PatientRepository.INSERT);
+            } catch (SQLException e) {
+                conn.close();
+                throw e;
+            }
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        // Returns the number of rows this commit made durable.
+        int commit() throws SQLException {
+            conn.commit();
+            int rows = uncommitted;
+            uncommitted = 0;
+            return rows;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                stmt.close();
+            } finally {
+                conn.close();
+            }
+        }
+    }
+    private static int flushBatch(Connection conn, PreparedStatement stmt, List<Patient> batch,
+                                  BiConsumer<Patient, String> rejected) throws SQLException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            stmt.executeBatch();
+            conn.releaseSavepoint(savepoint);
+            return batch.size();
+        } catch (BatchUpdateException e) {
+            conn.rollback(savepoint);
+            stmt.clearBatch();
+            int inserted = 0;
+            for (Patient patient : batch) {
+                Savepoint row = conn.setSavepoint();
+                try {
+                    bindPatient(stmt, patient);
+                    stmt.executeUpdate();
+                    conn.releaseSavepoint(row);
+                    inserted++;
+                } catch (SQLException rowError) {
+                    conn.rollback(row);
+                    rejected.accept(patient, rowError.getMessage());
+                }
+            }
+            return inserted;
+        } finally {
+            batch.clear();
+        }
+    }
+    private static void bindPatient(PreparedStatement stmt, Patient patient) throws SQLException {
+        HospitalApp.PatientRepository.bind(stmt, patient.getName(), patient.getAge(), patient.getGender(),
+                patient.getContact(), patient.getSelectedDoctor());
+    }
     public static ArrayList<Patient> getAllPatients() {
         ArrayList<Patient> patients = new ArrayList<>();
-        String query = "SELECT * FROM patients";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query);
-             ResultSet rs = stmt.executeQuery()) {
-            while (rs.next()) {
-                Patient patient = new Patient(
-                    rs.getString("first_name"),
-                    rs.getInt("age"),
-                    rs.getString("gender"),
-                    rs.getString("phone"),
-                    ""
-                );
-                patient.setId(rs.getInt("id"));
-                patients.add(patient);
-            }
+        try {
+            HospitalApp.Metrics.record("patients.list", () -> {
+                for (HospitalApp.PatientRepository.Row row : DBConnection.SHARDS.concat(shard -> DBConnection.PATIENTS.all())) {
+                    patients.add(toPatient(row));
+                }
+                return patients;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return patients;
     }
+    // Streams patients off a forward-only server-side cursor, so memory stays constant regardless of table size.
+    // The stream holds a pooled connection per clinic until it is closed: always use it in try-with-resources.
+    public static Stream<Patient> streamPatients() throws SQLException {
+        List<Stream<HospitalApp.PatientRepository.Row>> clinics = new ArrayList<>();
+        try {
+            for (HospitalApp.ShardMap.Shard shard : DBConnection.SHARDS.shards()) {
+                clinics.add(DBConnection.SHARDS.on(shard, DBConnection.PATIENTS::streamAll));
+            }
+        } catch (SQLException | RuntimeException e) {
+            clinics.forEach(Stream::close);
+            throw e;
+        }
+        return clinics.stream().flatMap(clinic -> clinic).map(PatientDAOo::toPatient)
+                .onClose(() -> clinics.forEach(Stream::close));
+    }
+    private static Patient toPatient(HospitalApp.PatientRepository.Row row) {
+        Patient patient = new Patient(row.name(), row.age(), row.gender(), row.contact(),
+                row.selectedDoctor() == null ? "" : row.selectedDoctor());
+        patient.setId(row.patientId());
+        return patient;
+    }
+}
+
+// --- DAO/PatientImport.java ---
+// Bulk patient import: java PatientImport patients.csv [errors.csv] [batchSize] [rowsPerTransaction]
+// Expects name,age,gender,contact[,selectedDoctor] per line (an optional header line is skipped).
+// The file is streamed, so memory use does not grow with its size; rejected rows go to the error report.
+class PatientImport {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java PatientImport <patients.csv> [errors.csv] [batchSize] [rowsPerTransaction]");
+            System.exit(2);
+        }
+        Path input = Path.of(args[0]);
+        Path errors = Path.of(args.length > 1 ? args[1] : args[0] + ".errors.csv");
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        int rowsPerTransaction = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        long start = System.nanoTime();
+        int imported;
+        ErrorReport report;
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             PrintWriter out = new PrintWriter(Files.newBufferedWriter(errors, StandardCharsets.UTF_8))) {
+            report = new ErrorReport(out);
+            imported = PatientDAOo.insertPatients(() -> new CsvPatients(reader, report), batchSize, rowsPerTransaction,
+                    (patient, reason) -> report.reject("db", patient.getName() + "," + patient.getContact(), reason));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Imported %d patients in %.1f s (%.0f rows/s), %d rejected; see %s%n",
+                imported, seconds, imported / Math.max(seconds, 1e-9), report.rejected, errors);
+    }
+    private static class ErrorReport {
+        private final PrintWriter out;
+        int rejected;
+        ErrorReport(PrintWriter out) {
+            this.out = out;
+            out.println("line,reason,row");
+        }
+        void reject(String line, String row, String reason) {
+            rejected++;
+            out.println(line + "," + quote(reason) + "," + quote(row));
+        }
+        private static String quote(String value) {
+            return "\"" + String.valueOf(value).replace("\"", "\"\"") + "\"";
+        }
+    }
+    // Parses lazily; each call to next() reads ahead only as far as the next valid row.
+    private static class CsvPatients implements Iterator<Patient> {
+        private final BufferedReader reader;
+        private final ErrorReport report;
+        private Patient next;
+        private int lineNumber;
+        CsvPatients(BufferedReader reader, ErrorReport report) {
+            this.reader = reader;
+            this.report = report;
+        }
+        @Override
+        public boolean hasNext() {
+            try {
+                String line;
+                while (next == null && (line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isBlank() || (lineNumber == 1 && line.toLowerCase().startsWith("name,"))) {
+                        continue;
+                    }
+                    String[] fields = line.split(",", -1);
+                    try {
+                        if (fields.length < 4) {
+                            throw new IllegalArgumentException("Expected name,age,gender,contact[,selectedDoctor]");
+                        }
+                        next = new Patient(fields[0].trim(), Integer.parseInt(fields[1].trim()), fields[2].trim(),
+                                fields[3].trim(), fields.length > 4 ? fields[4].trim() : "");
+                    } catch (IllegalArgumentException e) {
+                        report.reject(String.valueOf(lineNumber), line, e.getMessage());
+                    }
+                }
+                return next != null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        @Override
+        public Patient next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Patient patient = next;
+            next = null;
+            return patient;
+        }
+    }
 }
 
 // --- db/DBConnection.java ---
 class DBConnection {
-    private static final String URL = "jdbc:mysql://localhost:3306/hospital";
-    private static final String USER = "root";
-    private static final String PASSWORD = "";
+    // Shares the Swing app's database (hospital.db.url), clinic shards, repositories and booking service, so both
+    // frontends read and write the same patient, doctor and appointment tables. Connections come from
+    // HospitalApp.getConnection()/readConnection(), so how they are pooled and routed stays HospitalApp's business.
+    // getConnection() is the current clinic's database: the home clinic's outside SHARDS.on().
+    static final HospitalApp.ShardMap SHARDS = HospitalApp.SHARDS;
+    static final HospitalApp.PatientRepository PATIENTS = HospitalApp.PATIENTS;
+    static final HospitalApp.DoctorRoster ROSTER = HospitalApp.ROSTER;
+    static final HospitalApp.AvailabilityBus AVAILABILITY_EVENTS = HospitalApp.AVAILABILITY_EVENTS;
+    static final HospitalApp.HospitalService SERVICE = HospitalApp.SERVICE;
+    // Brings the tables up to the schema version the service expects.
+    static void setupDatabase() {
+        HospitalApp.setupDatabase();
+    }
     public static Connection getConnection() {
         try {
-            return DriverManager.getConnection(URL, USER, PASSWORD);
+            return HospitalApp.getConnection();
         } catch (SQLException e) {
             e.printStackTrace();
             return null;
         }
     }
+    // Read-only listings; may be served by a replica up to hospital.replicas.maxLagMillis behind.
+    public static Connection getReadConnection() {
+        try {
+            return HospitalApp.readConnection();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
+
+// --- db/FxDataAccess.java ---
+class FxDataAccess {
+    // Runs JDBC work off the FX application thread; hiding the owner stage cancels it.
+    static <T> Future<T> run(Stage owner, Callable<T> work, Consumer<? super T> onSuccess, Consumer<? super Exception> onError) {
+        Future<T> task = HospitalApp.DataAccess.submit(work, Platform::runLater, onSuccess, onError);
+        owner.addEventHandler(WindowEvent.WINDOW_HIDDEN, e -> task.cancel(true));
+        return task;
+    }
+    // Keeps "id: name" roster items in step with availability changes until the owner stage is hidden; call it
+    // once the roster is loaded.
+    static void followRoster(Stage owner, String specialization, List<String> items) {
+        HospitalApp.AvailabilityBus.Subscription events = DBConnection.AVAILABILITY_EVENTS.subscribe(specialization,
+                Platform::runLater, rows -> HospitalApp.AvailabilityBus.applyToRoster(rows, items::contains, items::add, items::remove));
+        owner.addEventHandler(WindowEvent.WINDOW_HIDDEN, e -> events.close());
+    }
 }
 
 // --- entity/Patient.java ---
 class Patient {
+    private static final Pattern CONTACT_PATTERN = Pattern.compile("^09\\d{8}$");
     private int id;
     private String name;
     private int age;
@@ -96,7 +379,7 @@ class Patient {
     public void setAge(int age) { this.age = age; }
     public void setGender(String gender) { this.gender = gender; }
     public void setContact(String contact) {
-        if (!contact.matches("^09\\d{8}$")) {
+        if (!isValidContact(contact)) {
             throw new IllegalArgumentException("Contact must be exactly 10 digits and start with '09'.");
         }
         this.contact = contact;
@@ -104,6 +387,9 @@ class Patient {
     public void setSelectedDoctor(String selectedDoctor) {
         this.selectedDoctor = selectedDoctor;
     }
+    public static boolean isValidContact(String contact) {
+        return contact != null && CONTACT_PATTERN.matcher(contact).matches();
+    }
 }
 
 // --- entity/Doctor.java ---
@@ -137,24 +423,28 @@ class DoctorStage extends Stage {
         show();
     }
     private void loadAvailableDentists() {
-        try (Connection conn = DBConnection.getConnection();
-             ResultSet rs = conn.createStatement().executeQuery(
-                     "SELECT doctor_id, name FROM doctor WHERE specialization = 'Dentist' AND availability = TRUE")) {
-            while (rs.next()) {
-                int id = rs.getInt("doctor_id");
-                String name = rs.getString("name");
-                doctorList.getItems().add(id + ": " + name);
-            }
-        } catch (SQLException e) {
+        List<String> cached = DBConnection.SERVICE.cachedDoctors(HospitalApp.DENTIST);
+        if (cached != null) {
+            doctorList.getItems().addAll(cached);
+            FxDataAccess.followRoster(this, HospitalApp.DENTIST, doctorList.getItems());
+            return;
+        }
+        doctorList.setPromptText("Loading...");
+        FxDataAccess.run(this, () -> DBConnection.SERVICE.availableDoctors(HospitalApp.DENTIST), dentists -> {
+            doctorList.getItems().addAll(dentists);
+            doctorList.setPromptText(null);
+            FxDataAccess.followRoster(this, HospitalApp.DENTIST, doctorList.getItems());
+        }, e -> {
             new Alert(Alert.AlertType.ERROR, "Failed to load dentists: " + e.getMessage()).showAndWait();
             e.printStackTrace();
-        }
+        });
     }
 }
 
 // --- entity/Appointment.java ---
 class AppointmentStage extends Stage {
     private TextField patientIdField, dateField;
+    private Button bookBtn;
     private int doctorId;
     public AppointmentStage(int doctorId) {
         this.doctorId = doctorId;
@@ -171,7 +461,7 @@ class AppointmentStage extends Stage {
         dateField = new TextField();
         grid.add(dateLabel, 0, 1);
         grid.add(dateField, 1, 1);
-        Button bookBtn = new Button("Book Appointment");
+        bookBtn = new Button("Book Appointment");
         bookBtn.setOnAction(e -> bookAppointment());
         grid.add(bookBtn, 1, 2);
         Scene scene = new Scene(grid, 400, 200);
@@ -182,21 +472,23 @@ class AppointmentStage extends Stage {
         try {
             int patientId = Integer.parseInt(patientIdField.getText().trim());
             String date = dateField.getText().trim();
-            try (Connection conn = DBConnection.getConnection()) {
-                String query = "INSERT INTO appointment (patient_id, doctor_id, appointment_date, status) VALUES (?, ?, ?, 'Scheduled')";
-                PreparedStatement stmt = conn.prepareStatement(query);
-                stmt.setInt(1, patientId);
-                stmt.setInt(2, doctorId);
-                stmt.setString(3, date);
-                stmt.executeUpdate();
-                new Alert(Alert.AlertType.INFORMATION, "Appointment booked successfully!").showAndWait();
+            LocalDate appointmentDate = LocalDate.parse(date);
+            HospitalApp.HospitalService.validateAppointmentDate(appointmentDate);
+            bookBtn.setDisable(true);
+            FxDataAccess.run(this, () -> DBConnection.SERVICE.bookAppointment(patientId, doctorId, appointmentDate, null), slot -> {
+                new Alert(Alert.AlertType.INFORMATION, "Appointment booked successfully for " + slot.toLocalDate() + " at " + slot.toLocalTime() + "!").showAndWait();
                 this.close();
-            }
+            }, e -> {
+                bookBtn.setDisable(false);
+                new Alert(Alert.AlertType.ERROR, "Failed to book appointment: " + e.getMessage()).showAndWait();
+                e.printStackTrace();
+            });
         } catch (NumberFormatException e) {
             new Alert(Alert.AlertType.ERROR, "Invalid patient ID. Please enter a number.").showAndWait();
-        } catch (Exception e) {
-            new Alert(Alert.AlertType.ERROR, "Failed to book appointment: " + e.getMessage()).showAndWait();
-            e.printStackTrace();
+        } catch (DateTimeParseException e) {
+            new Alert(Alert.AlertType.ERROR, "Invalid date format. Use YYYY-MM-DD.").showAndWait();
+        } catch (IllegalArgumentException e) {
+            new Alert(Alert.AlertType.WARNING, e.getMessage()).showAndWait();
         }
     }
 }
@@ -224,6 +516,7 @@ class RoleSelection extends Application {
         primaryStage.show();
     }
     public static void main(String[] args) {
+        DBConnection.setupDatabase();
         launch(args);
     }
 }
@@ -246,6 +539,7 @@ class PatientStage extends Stage {
     TextField nameField, ageField, contactField;
     ComboBox<String> genderCombo;
     ComboBox<String> doctorList;
+    Button submit;
     public PatientStage() {
         setTitle("Patient Registration");
         GridPane grid = new GridPane();
@@ -274,7 +568,7 @@ class PatientStage extends Stage {
         loadAvailableDentists();
         grid.add(doctorLabel, 0, 4);
         grid.add(doctorList, 1, 4);
-        Button submit = new Button("Register Patient");
+        submit = new Button("Register Patient");
         submit.setOnAction(e -> addPatient());
         grid.add(submit, 1, 5);
         Scene scene = new Scene(grid, 400, 350);
@@ -282,19 +576,21 @@ class PatientStage extends Stage {
         show();
     }
     private void loadAvailableDentists() {
-        try (Connection conn = DBConnection.getConnection()) {
-            String query = "SELECT doctor_id, name FROM doctor WHERE specialization = 'Dentist' AND availability = TRUE";
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int id = rs.getInt("doctor_id");
-                String name = rs.getString("name");
-                doctorList.getItems().add(id + ": " + name);
-            }
-        } catch (Exception e) {
+        List<String> cached = DBConnection.SERVICE.cachedDoctors(HospitalApp.DENTIST);
+        if (cached != null) {
+            doctorList.getItems().addAll(cached);
+            FxDataAccess.followRoster(this, HospitalApp.DENTIST, doctorList.getItems());
+            return;
+        }
+        doctorList.setPromptText("Loading...");
+        FxDataAccess.run(this, () -> DBConnection.SERVICE.availableDoctors(HospitalApp.DENTIST), dentists -> {
+            doctorList.getItems().addAll(dentists);
+            doctorList.setPromptText(null);
+            FxDataAccess.followRoster(this, HospitalApp.DENTIST, doctorList.getItems());
+        }, e -> {
             new Alert(Alert.AlertType.ERROR, "Error loading doctors: " + e.getMessage()).showAndWait();
             e.printStackTrace();
-        }
+        });
     }
     private void addPatient() {
         try {
@@ -307,15 +603,25 @@ class PatientStage extends Stage {
                 new Alert(Alert.AlertType.WARNING, "Please select a doctor.").showAndWait();
                 return;
             }
-            if (!contact.matches("^09\\d{8}$")) {
+            if (!Patient.isValidContact(contact)) {
                 new Alert(Alert.AlertType.WARNING, "Contact must be exactly 10 digits and start with '09'.").showAndWait();
                 return;
             }
             int doctorId = Integer.parseInt(selectedDoctor.split(":")[0]);
             Patient patient = new Patient(name, age, gender, contact, selectedDoctor);
-            PatientDAOo.insertPatient(patient);
-            new Alert(Alert.AlertType.INFORMATION, "Patient registered successfully!").showAndWait();
-            this.close();
+            submit.setDisable(true);
+            FxDataAccess.run(this, () -> PatientDAOo.insertPatient(patient), inserted -> {
+                if (inserted) {
+                    new Alert(Alert.AlertType.INFORMATION, "Patient registered successfully!").showAndWait();
+                    this.close();
+                } else {
+                    submit.setDisable(false);
+                    new Alert(Alert.AlertType.ERROR, "Failed to register patient.").showAndWait();
+                }
+            }, e -> {
+                submit.setDisable(false);
+                new Alert(Alert.AlertType.ERROR, "Error: " + e.getMessage()).showAndWait();
+            });
         } catch (Exception e) {
             new Alert(Alert.AlertType.ERROR, "Error: " + e.getMessage()).showAndWait();
         }
@@ -338,6 +644,7 @@ class MainMenuStage extends Application {
         var1.show();
     }
     public static void main(String[] var0) {
+        DBConnection.setupDatabase();
         launch(var0);
     }
 }
@@ -359,6 +666,7 @@ public class Main extends Application {
         primaryStage.show();
     }
     public static void main(String[] args) {
+        DBConnection.setupDatabase();
         launch(args);
     }
 }